@@ -6,10 +6,27 @@ include $(CLEAR_VARS)
   
 LOCAL_MODULE    := CBlurImage
   
-LOCAL_SRC_FILES := CBlurImage.c
+LOCAL_SRC_FILES := CBlurImage.c blur_core.c blur_box.c
+
+# vector kernels, picked at runtime by blur_simd_supported()
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+    LOCAL_SRC_FILES += blur_neon.c.neon
+    LOCAL_CFLAGS += -DBLUR_HAVE_NEON
+    LOCAL_STATIC_LIBRARIES += cpufeatures
+endif
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+    LOCAL_SRC_FILES += blur_neon.c
+    LOCAL_CFLAGS += -DBLUR_HAVE_NEON
+endif
+ifneq ($(filter x86 x86_64,$(TARGET_ARCH_ABI)),)
+    LOCAL_SRC_FILES += blur_sse.c
+    LOCAL_CFLAGS += -DBLUR_HAVE_SSE2
+endif
 
 LOCAL_LDLIBS := -llog
 
 LOCAL_LDLIBS += -ljnigraphics
   
-include $(BUILD_SHARED_LIBRARY) 
\ No newline at end of file
+include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,android/cpufeatures)
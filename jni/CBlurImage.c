@@ -1,259 +1,185 @@
 #include <jni.h>
 #include <string.h>
+#include <stdlib.h>
 #include <math.h>
 #include <stdio.h>
+#include <pthread.h>
 #include <android/log.h>
 #include <android/bitmap.h>
 
+#include "blur.h"
+
 #define LOG_TAG "libbitmaputils"
 #define LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
-typedef struct {
-	uint8_t red;
-	uint8_t green;
-	uint8_t blue;
-	uint8_t alpha;
-} rgba;
+JNIEXPORT jlong JNICALL Java_com_swordy_library_android_libs_image_BlurImage_nativeCreate(JNIEnv* env, jclass clazz, jint threads) {
+    blur_context* ctx = blur_context_create(threads);
+    if (ctx == NULL) {
+        LOGE("Out of memory creating blur context!");
+    } else {
+        blur_context_set_simd(ctx, 1);
+    }
+    return (jlong) (intptr_t) ctx;
+}
 
-JNIEXPORT void JNICALL Java_com_swordy_library_android_libs_image_BlurImage_generate(JNIEnv* env, jobject obj, jobject bitmapIn, jobject bitmapOut, jint radius) {
-    LOGI("Blurring bitmap...");
+JNIEXPORT void JNICALL Java_com_swordy_library_android_libs_image_BlurImage_nativeDestroy(JNIEnv* env, jclass clazz, jlong context) {
+    blur_context_destroy((blur_context*) (intptr_t) context);
+}
 
-    // Properties
-    AndroidBitmapInfo   infoIn;
-    void*               pixelsIn;
-    AndroidBitmapInfo   infoOut;
-    void*               pixelsOut;
+JNIEXPORT void JNICALL Java_com_swordy_library_android_libs_image_BlurImage_nativeSetSimdEnabled(JNIEnv* env, jclass clazz, jlong context, jboolean enabled) {
+    blur_context_set_simd((blur_context*) (intptr_t) context, enabled);
+}
+
+JNIEXPORT void JNICALL Java_com_swordy_library_android_libs_image_BlurImage_nativeSetExact(JNIEnv* env, jclass clazz, jlong context, jboolean exact) {
+    ((blur_context*) (intptr_t) context)->exact = exact;
+}
+
+JNIEXPORT void JNICALL Java_com_swordy_library_android_libs_image_BlurImage_nativeSetKernel(JNIEnv* env, jclass clazz, jlong context, jint kernel) {
+    blur_context_set_kernel((blur_context*) (intptr_t) context, kernel);
+}
+
+JNIEXPORT jboolean JNICALL Java_com_swordy_library_android_libs_image_BlurImage_nativeIsSimdSupported(JNIEnv* env, jclass clazz) {
+    return blur_simd_supported() ? JNI_TRUE : JNI_FALSE;
+}
 
+/*
+ * Gets the info of both bitmaps, checks they share a supported format and
+ * locks them. The same bitmap passed twice is locked once. Returns the blur
+ * format, or -1 with nothing locked.
+ */
+static int blur_lock_bitmaps(JNIEnv* env, jobject bitmapIn, AndroidBitmapInfo* infoIn, void** pixelsIn,
+        jobject bitmapOut, AndroidBitmapInfo* infoOut, void** pixelsOut) {
     int ret;
 
     // Get image info
-    if ((ret = AndroidBitmap_getInfo(env, bitmapIn, &infoIn)) < 0 || (ret = AndroidBitmap_getInfo(env, bitmapOut, &infoOut)) < 0) {
+    if ((ret = AndroidBitmap_getInfo(env, bitmapIn, infoIn)) < 0 || (ret = AndroidBitmap_getInfo(env, bitmapOut, infoOut)) < 0) {
         LOGE("AndroidBitmap_getInfo() failed ! error=%d", ret);
-        return;
+        return -1;
     }
 
     // Check image
-    if (infoIn.format != ANDROID_BITMAP_FORMAT_RGBA_8888 || infoOut.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+    if (infoIn->format != infoOut->format
+            || (infoIn->format != ANDROID_BITMAP_FORMAT_RGBA_8888 && infoIn->format != ANDROID_BITMAP_FORMAT_RGB_565)) {
         LOGE(
-		"Bitmap format is not RGBA_8888!");
-        LOGE("==> %d %d", infoIn.format,
-		infoOut.format);
-        return;
+		"Bitmap format is not RGBA_8888 or RGB_565!");
+        LOGE("==> %d %d", infoIn->format,
+		infoOut->format);
+        return -1;
     }
 
     // Lock all images
-    if ((ret = AndroidBitmap_lockPixels(env, bitmapIn, &pixelsIn)) < 0 || (ret = AndroidBitmap_lockPixels(env, bitmapOut, &pixelsOut)) < 0) {
+    if ((ret = AndroidBitmap_lockPixels(env, bitmapIn, pixelsIn)) < 0) {
         LOGE("AndroidBitmap_lockPixels() failed ! error=%d", ret);
+        return -1;
+    }
+    if ((*env)->IsSameObject(env, bitmapIn, bitmapOut)) {
+        *pixelsOut = *pixelsIn;
+    } else if ((ret = AndroidBitmap_lockPixels(env, bitmapOut, pixelsOut)) < 0) {
+        LOGE("AndroidBitmap_lockPixels() failed ! error=%d", ret);
+        AndroidBitmap_unlockPixels(env, bitmapIn);
+        return -1;
+    }
+
+    return infoIn->format == ANDROID_BITMAP_FORMAT_RGB_565 ? BLUR_FORMAT_RGB_565 : BLUR_FORMAT_RGBA_8888;
+}
+
+/*
+ * Throws IllegalArgumentException for a radius outside 0..BLUR_MAX_RADIUS,
+ * larger ones would overflow the division tables. Returns -1 if thrown.
+ */
+static int blur_check_radius(JNIEnv* env, jint radius) {
+    char message[64];
+    if (radius >= 0 && radius <= BLUR_MAX_RADIUS) {
+        return 0;
+    }
+
+    jclass exception = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+    if (exception != NULL) {
+        snprintf(message, sizeof(message), "radius must be in 0..%d: %d", BLUR_MAX_RADIUS, radius);
+        (*env)->ThrowNew(env, exception, message);
+    }
+    return -1;
+}
+
+static void blur_unlock_bitmaps(JNIEnv* env, jobject bitmapIn, jobject bitmapOut) {
+    AndroidBitmap_unlockPixels(env, bitmapIn);
+    if (!(*env)->IsSameObject(env, bitmapIn, bitmapOut)) {
+        AndroidBitmap_unlockPixels(env, bitmapOut);
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_swordy_library_android_libs_image_BlurImage_nativeGenerate(JNIEnv* env, jclass clazz, jlong context, jobject bitmapIn, jobject bitmapOut, jint radius) {
+    LOGI("Blurring bitmap...");
+
+    if (blur_check_radius(env, radius) < 0) {
+        return;
     }
 
+    blur_context* ctx = (blur_context*) (intptr_t) context;
+
+    // Properties
+    AndroidBitmapInfo   infoIn;
+    void*               pixelsIn;
+    AndroidBitmapInfo   infoOut;
+    void*               pixelsOut;
+
+    int format = blur_lock_bitmaps(env, bitmapIn, &infoIn, &pixelsIn, bitmapOut, &infoOut, &pixelsOut);
+    if (format < 0) {
+        return;
+    }
+    int bpp = blur_bytes_per_pixel(format);
+
     int h = infoIn.height;
     int w = infoIn.width;
 
     LOGI(
 		"Image size is: %i %i", w, h);
 
-    rgba* input = (rgba*) pixelsIn;
-    rgba* output = (rgba*) pixelsOut;
-
-    int wm = w - 1;
-    int hm = h - 1;
-    int wh = w * h;
-    int whMax = max(w, h);
-    int div = radius + radius + 1;
-
-    int r[wh];
-    int g[wh];
-    int b[wh];
-    int rsum, gsum, bsum, x, y, i, yp, yi, yw;
-    rgba p;
-    int vmin[whMax];
-
-    int divsum = (div + 1) >> 1;
-    divsum *= divsum;
-    int dv[256 * divsum];
-    for (i = 0; i < 256 * divsum; i++) {
-        dv[i] = (i / divsum);
-    }
-
-    yw = yi = 0;
-
-    int stack[div][3];
-    int stackpointer;
-    int stackstart;
-    int rbs;
-    int ir;
-    int ip;
-    int r1 = radius + 1;
-    int routsum, goutsum, boutsum;
-    int rinsum, ginsum, binsum;
-
-    for (y = 0; y < h; y++) {
-        rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-        for (i = -radius; i <= radius; i++) {
-            p = input[yi + min(wm, max(i, 0))];
-
-            ir = i + radius; // same as sir
-
-            stack[ir][0] = p.red;
-            stack[ir][1] = p.green;
-            stack[ir][2] = p.blue;
-            rbs = r1 - abs(i);
-            rsum += stack[ir][0] * rbs;
-            gsum += stack[ir][1] * rbs;
-            bsum += stack[ir][2] * rbs;
-            if (i > 0) {
-                rinsum += stack[ir][0];
-                ginsum += stack[ir][1];
-                binsum += stack[ir][2];
-            } else {
-                routsum += stack[ir][0];
-                goutsum += stack[ir][1];
-                boutsum += stack[ir][2];
-            }
-        }
-        stackpointer = radius;
-
-        for (x = 0; x < w; x++) {
-
-            r[yi] = dv[rsum];
-            g[yi] = dv[gsum];
-            b[yi] = dv[bsum];
-
-            rsum -= routsum;
-            gsum -= goutsum;
-            bsum -= boutsum;
-
-            stackstart = stackpointer - radius + div;
-            ir = stackstart % div; // same as sir
-
-            routsum -= stack[ir][0];
-            goutsum -= stack[ir][1];
-            boutsum -= stack[ir][2];
-
-            if (y == 0) {
-                vmin[x] = min(x + radius + 1, wm);
-            }
-            p = input[yw + vmin[x]];
-
-            stack[ir][0] = p.red;
-            stack[ir][1] = p.green;
-            stack[ir][2] = p.blue;
-
-            rinsum += stack[ir][0];
-            ginsum += stack[ir][1];
-            binsum += stack[ir][2];
-
-            rsum += rinsum;
-            gsum += ginsum;
-            bsum += binsum;
-
-            stackpointer = (stackpointer + 1) % div;
-            ir = (stackpointer) % div; // same as sir
-
-            routsum += stack[ir][0];
-            goutsum += stack[ir][1];
-            boutsum += stack[ir][2];
-
-            rinsum -= stack[ir][0];
-            ginsum -= stack[ir][1];
-            binsum -= stack[ir][2];
-
-            yi++;
-        }
-        yw += w;
-    }
-    for (x = 0; x < w; x++) {
-        rinsum = ginsum = binsum = routsum = goutsum = boutsum = rsum = gsum = bsum = 0;
-        yp = -radius * w;
-        for (i = -radius; i <= radius; i++) {
-            yi = max(0, yp) + x;
-
-            ir = i + radius; // same as sir
-
-            stack[ir][0] = r[yi];
-            stack[ir][1] = g[yi];
-            stack[ir][2] = b[yi];
-
-            rbs = r1 - abs(i);
-
-            rsum += r[yi] * rbs;
-            gsum += g[yi] * rbs;
-            bsum += b[yi] * rbs;
-
-            if (i > 0) {
-                rinsum += stack[ir][0];
-                ginsum += stack[ir][1];
-                binsum += stack[ir][2];
-            } else {
-                routsum += stack[ir][0];
-                goutsum += stack[ir][1];
-                boutsum += stack[ir][2];
-            }
-
-            if (i < hm) {
-                yp += w;
-            }
-        }
-        yi = x;
-        stackpointer = radius;
-        for (y = 0; y < h; y++) {
-            output[yi].red = dv[rsum];
-            output[yi].green = dv[gsum];
-            output[yi].blue = dv[bsum];
-
-            rsum -= routsum;
-            gsum -= goutsum;
-            bsum -= boutsum;
-
-            stackstart = stackpointer - radius + div;
-            ir = stackstart % div; // same as sir
-
-            routsum -= stack[ir][0];
-            goutsum -= stack[ir][1];
-            boutsum -= stack[ir][2];
-
-            if (x == 0) vmin[y] = min(y + r1, hm) * w;
-            ip = x + vmin[y];
-
-            stack[ir][0] = r[ip];
-            stack[ir][1] = g[ip];
-            stack[ir][2] = b[ip];
-
-            rinsum += stack[ir][0];
-            ginsum += stack[ir][1];
-            binsum += stack[ir][2];
-
-            rsum += rinsum;
-            gsum += ginsum;
-            bsum += binsum;
-
-            stackpointer = (stackpointer + 1) % div;
-            ir = stackpointer; // same as sir
-
-            routsum += stack[ir][0];
-            goutsum += stack[ir][1];
-            boutsum += stack[ir][2];
-
-            rinsum -= stack[ir][0];
-            ginsum -= stack[ir][1];
-            binsum -= stack[ir][2];
-
-            yi += w;
-        }
+    if (infoIn.width != infoOut.width || infoIn.height != infoOut.height) {
+        LOGE("Bitmap size mismatch! %ix%i -> %ix%i", infoIn.width, infoIn.height, infoOut.width, infoOut.height);
+    } else if (blur_context_generate(ctx, pixelsIn, infoIn.stride / bpp, pixelsOut, infoOut.stride / bpp, w, h, format, radius) < 0) {
+        LOGE("Out of memory blurring with radius %d!", radius);
     }
 
     // Unlocks everything
-    AndroidBitmap_unlockPixels(env, bitmapIn);
-    AndroidBitmap_unlockPixels(env, bitmapOut);
+    blur_unlock_bitmaps(env, bitmapIn, bitmapOut);
 
     LOGI("Bitmap blurred.");
 }
 
-int min(int a, int b) {
-return a > b ? b : a;
-}
+JNIEXPORT void JNICALL Java_com_swordy_library_android_libs_image_BlurImage_nativeGenerateRegion(JNIEnv* env, jclass clazz, jlong context, jobject bitmapIn,
+        jint left, jint top, jint right, jint bottom, jobject bitmapOut, jint dstX, jint dstY, jint radius) {
+    LOGI("Blurring bitmap region...");
+
+    if (blur_check_radius(env, radius) < 0) {
+        return;
+    }
+
+    blur_context* ctx = (blur_context*) (intptr_t) context;
+
+    // Properties
+    AndroidBitmapInfo   infoIn;
+    void*               pixelsIn;
+    AndroidBitmapInfo   infoOut;
+    void*               pixelsOut;
+
+    int format = blur_lock_bitmaps(env, bitmapIn, &infoIn, &pixelsIn, bitmapOut, &infoOut, &pixelsOut);
+    if (format < 0) {
+        return;
+    }
+    int bpp = blur_bytes_per_pixel(format);
+
+    if (left < 0 || top < 0 || right > (int) infoIn.width || bottom > (int) infoIn.height || left >= right || top >= bottom
+            || dstX < 0 || dstY < 0 || dstX + right - left > (int) infoOut.width || dstY + bottom - top > (int) infoOut.height) {
+        LOGE("Region out of bounds! (%i, %i, %i, %i) -> (%i, %i)", left, top, right, bottom, dstX, dstY);
+    } else if (blur_context_generate_region(ctx, pixelsIn, infoIn.stride / bpp, infoIn.width, infoIn.height,
+            left, top, right, bottom, pixelsOut, infoOut.stride / bpp, dstX, dstY, format, radius) < 0) {
+        LOGE("Out of memory blurring with radius %d!", radius);
+    }
+
+    // Unlocks everything
+    blur_unlock_bitmaps(env, bitmapIn, bitmapOut);
 
-int max(int a, int b) {
-return a > b ? a : b;
+    LOGI("Bitmap region blurred.");
 }
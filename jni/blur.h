@@ -0,0 +1,250 @@
+#ifndef BLUR_H
+#define BLUR_H
+
+#include <stdint.h>
+#include <string.h>
+#include <pthread.h>
+
+/*
+ * Number of adjacent columns blurred together by the vertical pass. The
+ * columns advance row by row in lockstep, so every row access touches one
+ * contiguous run of pixels instead of striding through the whole image.
+ */
+#define BLUR_TILE_COLUMNS 16
+
+/*
+ * Radii from the fast minimum up take the fast path unless the context is
+ * exact. The image is scaled down by radius / BLUR_FAST_RADIUS, so the blur of
+ * the small image always runs with a radius of about BLUR_FAST_RADIUS.
+ *
+ * The minimum is where the fast path starts to win, measured with blur_bench
+ * at 720x480 to 1920x1080 on one thread: the scalar kernels slow down with the
+ * radius and win from 24 on (1.7x at 24), the vector kernels stay fast enough
+ * that scaling only pays from about 100 on, with a margin 128 (1.1x at 128).
+ */
+#define BLUR_FAST_MIN_RADIUS 128
+#define BLUR_FAST_MIN_RADIUS_SCALAR 24
+#define BLUR_FAST_RADIUS 8
+
+/*
+ * Largest radius, BlurImage.MAX_RADIUS is the same. divsum = (radius + 1)^2
+ * must stay below 2^22 for the multiply-shift division of the vector kernels
+ * to be exact.
+ */
+#define BLUR_MAX_RADIUS 2046
+
+/*
+ * Largest radius the scalar stack kernels use the dv table for. It takes
+ * 256 * (radius + 1)^2 bytes, about 1 MB here and 1 GB at BLUR_MAX_RADIUS;
+ * larger radii divide with a multiply-shift instead.
+ */
+#define BLUR_DV_MAX_RADIUS 64
+
+/* Ints per stack entry and per lane of running sums, large enough for 4
+ * channels or vector lanes. */
+#define BLUR_STACK_INTS 4
+#define BLUR_SUMS_INTS 12
+
+/* Blur kernels, BlurImage.Kernel in the same order. */
+enum {
+	BLUR_KERNEL_STACK = 0,
+	BLUR_KERNEL_BOX
+};
+
+/* Boxes the box kernel applies in each direction. */
+#define BLUR_BOX_PASSES 3
+
+/* Pixel formats the kernels exist for. */
+enum {
+	BLUR_FORMAT_RGBA_8888 = 0,
+	BLUR_FORMAT_RGB_565,
+	BLUR_FORMAT_COUNT
+};
+
+typedef struct {
+	uint8_t red;
+	uint8_t green;
+	uint8_t blue;
+	uint8_t alpha;
+} rgba;
+
+typedef struct {
+	/* stack ring of BLUR_TILE_COLUMNS lanes, div * BLUR_STACK_INTS ints each */
+	int* stack;
+	/* running sums of BLUR_TILE_COLUMNS lanes, BLUR_SUMS_INTS ints each */
+	int* sums;
+} blur_scratch;
+
+typedef struct blur_context blur_context;
+
+/* Runs band `index` of `count` equal bands of the current job. */
+typedef void (*blur_task)(blur_context* ctx, blur_scratch* scratch, int index, int count);
+
+/*
+ * Horizontal pass over rows [y0, y1) of input into output. Strides are in
+ * pixels.
+ */
+typedef void (*blur_rows_kernel)(const blur_context* ctx, blur_scratch* scratch, const void* input, int inStride, void* output, int outStride, int w, int y0, int y1);
+
+/* Vertical pass over columns [x0, x1) of image, in place. */
+typedef void (*blur_columns_kernel)(const blur_context* ctx, blur_scratch* scratch, void* image, int stride, int w, int h, int x0, int x1);
+
+typedef struct {
+	blur_rows_kernel rows;
+	blur_columns_kernel columns;
+} blur_kernels;
+
+/*
+ * Native state of one BlurImage instance. Everything here depends on the
+ * radius and the thread count only, never on the image size, and is kept
+ * between calls.
+ */
+struct blur_context {
+	int radius;
+	/* largest radius the scratch has room for, -1 before the first blur */
+	int capacity;
+	/* dv[i] == i / divsum for every reachable weighted sum, scalar stack kernels up to BLUR_DV_MAX_RADIUS only */
+	uint8_t* dv;
+	int dv_capacity;
+	/* (i * div_mul) >> div_shift == i / divsum, for the vector kernels */
+	uint32_t div_mul;
+	int div_shift;
+
+	/* half widths of the box kernel's passes, (i * box_mul) >> box_shift == i / (2 * half width + 1) */
+	int box_radius[BLUR_BOX_PASSES];
+	uint32_t box_mul[BLUR_BOX_PASSES];
+	int box_shift[BLUR_BOX_PASSES];
+
+	/* kernels per pixel format of the selected kernel, vector ones when enabled and supported */
+	int kernel;
+	int simd;
+	blur_kernels kernels[BLUR_FORMAT_COUNT];
+
+	/* one scratch per thread, the calling thread uses scratch[0] */
+	int threads;
+	blur_scratch* scratch;
+
+	/* threads - 1 workers parked on `start` between jobs */
+	pthread_t* workers;
+	pthread_mutex_t lock;
+	pthread_cond_t start;
+	pthread_cond_t done;
+	unsigned generation;
+	int pending;
+	int quit;
+
+	/* current job */
+	blur_task task;
+	const blur_kernels* job_kernels;
+	const void* input;
+	void* output;
+	int input_stride;
+	int output_stride;
+	int width;
+	int height;
+
+	/*
+	 * Fast path for large radii: source is scaled down by factor into small,
+	 * blurred there with radius / factor and scaled back up into target.
+	 * small only grows and is kept between calls.
+	 */
+	int exact;
+	int factor;
+	rgba* small;
+	size_t small_capacity;
+	int small_width;
+	int small_height;
+	int format;
+	const void* source;
+	void* target;
+	int source_stride;
+	int target_stride;
+	int full_width;
+	int full_height;
+
+	/*
+	 * Region blurs: the region plus a margin as wide as the kernel reaches,
+	 * radius for the stack blur and blur_box_reach for the box blur, is
+	 * blurred into this buffer, region_capacity bytes, and the region is
+	 * copied out. Only grows and is kept between calls.
+	 */
+	void* region;
+	size_t region_capacity;
+};
+
+static inline int min(int a, int b) {
+	return a > b ? b : a;
+}
+
+static inline int max(int a, int b) {
+	return a > b ? a : b;
+}
+
+/* Pixels as uint32_t hold red in the lowest byte, alpha in the highest. */
+static inline uint32_t blur_load_8888(const rgba* p) {
+	uint32_t px;
+	memcpy(&px, p, sizeof(px));
+	return px;
+}
+
+static inline void blur_store_8888(rgba* p, uint32_t px) {
+	memcpy(p, &px, sizeof(px));
+}
+
+/* 5 and 6 bit channels widened to 8 bits by repeating their top bits. */
+static inline uint32_t blur_load_565(const uint16_t* p) {
+	uint32_t v = *p;
+	uint32_t r = v >> 11;
+	uint32_t g = (v >> 5) & 0x3f;
+	uint32_t b = v & 0x1f;
+	return ((r << 3) | (r >> 2)) | (((g << 2) | (g >> 4)) << 8) | (((b << 3) | (b >> 2)) << 16) | 0xff000000u;
+}
+
+/* Rounds 8 bit channels to the nearest 5 and 6 bit values. */
+static inline uint16_t blur_pack_565(uint32_t r, uint32_t g, uint32_t b) {
+	return (uint16_t) ((((r * 249 + 1014) >> 11) << 11) | (((g * 253 + 505) >> 10) << 5) | ((b * 249 + 1014) >> 11));
+}
+
+static inline void blur_store_565(uint16_t* p, uint32_t px) {
+	*p = blur_pack_565(px & 0xff, (px >> 8) & 0xff, (px >> 16) & 0xff);
+}
+
+/* Smallest radius that takes the fast path with the context's kernels. */
+static inline int blur_fast_min_radius(const blur_context* ctx) {
+	return ctx->simd ? BLUR_FAST_MIN_RADIUS : BLUR_FAST_MIN_RADIUS_SCALAR;
+}
+
+static inline int blur_bytes_per_pixel(int format) {
+	return format == BLUR_FORMAT_RGB_565 ? 2 : 4;
+}
+
+/*
+ * blur_core.c. A context starts with the scalar stack kernels, inexact; the
+ * generate functions return -1 when out of memory or the radius is above
+ * BLUR_MAX_RADIUS.
+ */
+blur_context* blur_context_create(int threads);
+void blur_context_destroy(blur_context* ctx);
+int blur_simd_supported(void);
+void blur_context_set_simd(blur_context* ctx, int enabled);
+void blur_context_set_kernel(blur_context* ctx, int kernel);
+int blur_context_generate(blur_context* ctx, const void* input, int inStride, void* output, int outStride, int w, int h, int format, int radius);
+int blur_context_generate_region(blur_context* ctx, const void* input, int inStride, int w, int h,
+		int left, int top, int right, int bottom, void* output, int outStride, int dstX, int dstY, int format, int radius);
+
+/* blur_box.c */
+void blur_box_prepare(blur_context* ctx, int radius);
+int blur_box_reach(int radius);
+void blur_kernels_box(blur_kernels* kernels);
+
+#if defined(BLUR_HAVE_NEON)
+void blur_kernels_neon(blur_kernels* kernels);
+void blur_box_kernels_neon(blur_kernels* kernels);
+#endif
+
+#if defined(BLUR_HAVE_SSE2)
+void blur_kernels_sse2(blur_kernels* kernels);
+void blur_box_kernels_sse2(blur_kernels* kernels);
+#endif
+
+#endif /* BLUR_H */
@@ -0,0 +1,240 @@
+#include <stdlib.h>
+#include <math.h>
+
+#include "blur.h"
+
+/*
+ * Three pass box blur. Three boxes in a row approximate a Gaussian closely,
+ * and every box is a running sum, so the cost per pixel does not depend on the
+ * radius. The boxes are sized so their combined variance matches the stack
+ * blur of the same radius, whose triangle weights have variance
+ * radius * (radius + 2) / 6, and switching kernels keeps the blur strength.
+ *
+ * Every pass rounds to 8 bits and runs in place. The ring of a pass holds the
+ * original values of its window, so no copy of a row or column is needed and
+ * the scratch is the same as for the stack blur: a box is never wider than
+ * the stack of the same radius.
+ */
+
+/*
+ * One box pass. The parameters are copied out of the context, stores through
+ * pixel pointers could alias it and force a reload per pixel otherwise.
+ */
+typedef struct {
+	int k;
+	int n;
+	uint32_t mul;
+	int shift;
+} box_pass;
+
+static inline box_pass box_get_pass(const blur_context* ctx, int pass) {
+	box_pass b;
+	b.k = ctx->box_radius[pass];
+	b.n = b.k + b.k + 1;
+	b.mul = ctx->box_mul[pass];
+	b.shift = ctx->box_shift[pass];
+	return b;
+}
+
+/* (sum + k) / (2k + 1), exact as long as sum < 256 * (2k + 1) */
+static inline uint32_t box_divide(box_pass b, int sum) {
+	return (uint32_t) (((uint64_t) (uint32_t) (sum + b.k) * b.mul) >> b.shift);
+}
+
+static inline void box_unpack(uint32_t px, int* c) {
+	c[0] = px & 0xff;
+	c[1] = (px >> 8) & 0xff;
+	c[2] = (px >> 16) & 0xff;
+	c[3] = px >> 24;
+}
+
+static inline uint32_t box_pack(box_pass b, const int* sum) {
+	return box_divide(b, sum[0]) | (box_divide(b, sum[1]) << 8) | (box_divide(b, sum[2]) << 16) | (box_divide(b, sum[3]) << 24);
+}
+
+/*
+ * One box of half width k over a line of w pixels, step pixels apart. in may
+ * be out, a pixel is read before it is written.
+ */
+static void box_line(box_pass b, int (*ring)[4], const rgba* in, rgba* out, int w, int step) {
+	int k = b.k;
+	int n = b.n;
+	int wm = w - 1;
+	int sum[4], first[4], p[4];
+	int x, c, slot;
+
+	/* positions -k..0 are all the first pixel, 1..k go into slots 1..k */
+	box_unpack(blur_load_8888(in), first);
+	for (c = 0; c < 4; c++) {
+		sum[c] = first[c] * (k + 1);
+		ring[0][c] = first[c];
+	}
+	for (x = 1; x <= k; x++) {
+		box_unpack(blur_load_8888(in + min(x, wm) * step), p);
+		for (c = 0; c < 4; c++) {
+			ring[x][c] = p[c];
+			sum[c] += p[c];
+		}
+	}
+
+	/* position x - k leaves the window through the slot x + k + 1 enters */
+	slot = k + 1 == n ? 0 : k + 1;
+	for (x = 0;; x++) {
+		blur_store_8888(out + x * step, box_pack(b, sum));
+		if (x == wm) {
+			break;
+		}
+
+		box_unpack(blur_load_8888(in + min(x + k + 1, wm) * step), p);
+		const int* gone = x < k ? first : ring[slot];
+		for (c = 0; c < 4; c++) {
+			sum[c] += p[c] - gone[c];
+			ring[slot][c] = p[c];
+		}
+		if (++slot == n) {
+			slot = 0;
+		}
+	}
+}
+
+static void blur_box_rows(const blur_context* ctx, blur_scratch* scratch, const void* input, int inStride, void* output, int outStride, int w, int y0, int y1) {
+	int (*ring)[4] = (int (*)[4]) scratch->stack;
+	int y, pass;
+
+	for (y = y0; y < y1; y++) {
+		const rgba* in = (const rgba*) input + y * inStride;
+		rgba* out = (rgba*) output + y * outStride;
+		for (pass = 0; pass < BLUR_BOX_PASSES; pass++) {
+			box_line(box_get_pass(ctx, pass), ring, pass == 0 ? in : out, out, w, 1);
+		}
+	}
+}
+
+/*
+ * The vertical boxes run on BLUR_TILE_COLUMNS columns in lockstep like the
+ * stack blur, each pass over the whole tile before the next.
+ */
+static void blur_box_columns(const blur_context* ctx, blur_scratch* scratch, void* image, int stride, int w, int h, int x0, int x1) {
+	int div = ctx->radius + ctx->radius + 1;
+	int hm = h - 1;
+	int p[4];
+	int y, c, k, i, n, lanes, pass, slot;
+
+	for (; x0 < x1; x0 += BLUR_TILE_COLUMNS) {
+		lanes = min(BLUR_TILE_COLUMNS, x1 - x0);
+		rgba* base = (rgba*) image + x0;
+
+		for (pass = 0; pass < BLUR_BOX_PASSES; pass++) {
+			box_pass b = box_get_pass(ctx, pass);
+			k = b.k;
+			n = b.n;
+
+			for (c = 0; c < lanes; c++) {
+				int (*ring)[4] = (int (*)[4]) (scratch->stack + c * div * BLUR_STACK_INTS);
+				int* sum = scratch->sums + c * BLUR_SUMS_INTS;
+				int* first = sum + 4;
+
+				box_unpack(blur_load_8888(base + c), first);
+				for (i = 0; i < 4; i++) {
+					sum[i] = first[i] * (k + 1);
+					ring[0][i] = first[i];
+				}
+				for (y = 1; y <= k; y++) {
+					box_unpack(blur_load_8888(base + min(y, hm) * stride + c), p);
+					for (i = 0; i < 4; i++) {
+						ring[y][i] = p[i];
+						sum[i] += p[i];
+					}
+				}
+			}
+
+			slot = k + 1 == n ? 0 : k + 1;
+			for (y = 0;; y++) {
+				rgba* out = base + y * stride;
+				const rgba* in = base + min(y + k + 1, hm) * stride;
+
+				for (c = 0; c < lanes; c++) {
+					int (*ring)[4] = (int (*)[4]) (scratch->stack + c * div * BLUR_STACK_INTS);
+					int* sum = scratch->sums + c * BLUR_SUMS_INTS;
+					int* first = sum + 4;
+
+					blur_store_8888(out + c, box_pack(b, sum));
+					if (y == hm) {
+						continue;
+					}
+
+					box_unpack(blur_load_8888(in + c), p);
+					const int* gone = y < k ? first : ring[slot];
+					for (i = 0; i < 4; i++) {
+						sum[i] += p[i] - gone[i];
+						ring[slot][i] = p[i];
+					}
+				}
+				if (y == hm) {
+					break;
+				}
+				if (++slot == n) {
+					slot = 0;
+				}
+			}
+		}
+	}
+}
+
+static void box_half_widths(int radius, int* half) {
+	/*
+	 * Boxes of widths wl and wl + 2 (odd), m of the narrower one, with a
+	 * combined variance as close as possible to the target.
+	 */
+	double variance = radius * (radius + 2) / 6.0;
+	int wl = (int) floor(sqrt(12.0 * variance / BLUR_BOX_PASSES + 1.0));
+	if (wl % 2 == 0) {
+		wl--;
+	}
+	int m = (int) floor((12.0 * variance - BLUR_BOX_PASSES * (wl * wl + 4.0 * wl + 3.0)) / (-4.0 * wl - 4.0) + 0.5);
+	int pass;
+
+	for (pass = 0; pass < BLUR_BOX_PASSES; pass++) {
+		int width = pass < m ? wl : wl + 2;
+		half[pass] = min((width - 1) / 2, radius);
+	}
+}
+
+/*
+ * How far the passes reach together. Every pass clamps at the edge of what it
+ * is given, so a pixel depends on input up to the sum of the half widths away.
+ */
+int blur_box_reach(int radius) {
+	int half[BLUR_BOX_PASSES];
+	int pass, reach = 0;
+	box_half_widths(radius, half);
+	for (pass = 0; pass < BLUR_BOX_PASSES; pass++) {
+		reach += half[pass];
+	}
+	return reach;
+}
+
+void blur_box_prepare(blur_context* ctx, int radius) {
+	int half[BLUR_BOX_PASSES];
+	int pass, i;
+	box_half_widths(radius, half);
+
+	for (pass = 0; pass < BLUR_BOX_PASSES; pass++) {
+		int k = half[pass];
+		int shift = 31;
+		for (i = k + k + 1; i > 1; i >>= 1) {
+			shift++;
+		}
+		ctx->box_radius[pass] = k;
+		ctx->box_shift[pass] = shift;
+		ctx->box_mul[pass] = (uint32_t) (((1ULL << shift) + k + k) / (k + k + 1));
+	}
+}
+
+void blur_kernels_box(blur_kernels* kernels) {
+	kernels[BLUR_FORMAT_RGBA_8888].rows = blur_box_rows;
+	kernels[BLUR_FORMAT_RGBA_8888].columns = blur_box_columns;
+	/* RGB_565 is blurred through an RGBA_8888 copy, see blur_context_generate */
+	kernels[BLUR_FORMAT_RGB_565].rows = NULL;
+	kernels[BLUR_FORMAT_RGB_565].columns = NULL;
+}
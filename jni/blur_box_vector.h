@@ -0,0 +1,128 @@
+/*
+ * Vector box blur kernels for RGBA_8888, the counterpart of the scalar ones in
+ * blur_box.c. One pixel is one vector of four 32-bit lanes, and the rounding
+ * division by the box width is the exact multiply-shift of the scalar kernels,
+ * so both produce identical output.
+ *
+ * Besides the operations blur_vector.h needs, the including file defines:
+ *
+ *   VEC_SET1(n)               all lanes n
+ *   vec_divisor_t             divisor prepared by VEC_DIVISOR
+ *   VEC_DIVISOR(mul, shift)   divisor for (i * mul) >> shift
+ *   VEC_DIVIDE_BY(v, d)       4 lanes divided by d, packed to a pixel
+ *   VEC_BOX_ROWS, VEC_BOX_COLUMNS  names of the generated kernels
+ */
+
+static void VEC_BOX_ROWS(const blur_context* ctx, blur_scratch* scratch, const void* input, int inStride, void* output, int outStride, int w, int y0, int y1) {
+	int* ring = scratch->stack;
+	int wm = w - 1;
+	int y, x, pass;
+
+	for (y = y0; y < y1; y++) {
+		const rgba* in = (const rgba*) input + y * inStride;
+		rgba* out = (rgba*) output + y * outStride;
+
+		for (pass = 0; pass < BLUR_BOX_PASSES; pass++) {
+			int k = ctx->box_radius[pass];
+			int n = k + k + 1;
+			const vec_divisor_t d = VEC_DIVISOR(ctx->box_mul[pass], ctx->box_shift[pass]);
+			const vec_t round = VEC_SET1(k);
+			const rgba* src = pass == 0 ? in : out;
+			vec_t sum, first, p, gone;
+			int slot;
+
+			/* positions -k..0 are all the first pixel, 1..k go into slots 1..k */
+			first = VEC_UNPACK(blur_load_8888(src));
+			VEC_STORE(ring, first);
+			sum = VEC_ADD(VEC_MUL_ADD(VEC_ZERO(), first, k), first);
+			for (x = 1; x <= k; x++) {
+				p = VEC_UNPACK(blur_load_8888(src + min(x, wm)));
+				VEC_STORE(ring + x * 4, p);
+				sum = VEC_ADD(sum, p);
+			}
+
+			slot = k + 1 == n ? 0 : k + 1;
+			for (x = 0;; x++) {
+				blur_store_8888(out + x, VEC_DIVIDE_BY(VEC_ADD(sum, round), d));
+				if (x == wm) {
+					break;
+				}
+
+				p = VEC_UNPACK(blur_load_8888(src + min(x + k + 1, wm)));
+				gone = x < k ? first : VEC_LOAD(ring + slot * 4);
+				sum = VEC_ADD(sum, VEC_SUB(p, gone));
+				VEC_STORE(ring + slot * 4, p);
+				if (++slot == n) {
+					slot = 0;
+				}
+			}
+		}
+	}
+}
+
+static void VEC_BOX_COLUMNS(const blur_context* ctx, blur_scratch* scratch, void* image, int stride, int w, int h, int x0, int x1) {
+	int div = ctx->radius + ctx->radius + 1;
+	int hm = h - 1;
+	int y, c, lanes, pass;
+
+	for (; x0 < x1; x0 += BLUR_TILE_COLUMNS) {
+		lanes = min(BLUR_TILE_COLUMNS, x1 - x0);
+		rgba* base = (rgba*) image + x0;
+
+		for (pass = 0; pass < BLUR_BOX_PASSES; pass++) {
+			int k = ctx->box_radius[pass];
+			int n = k + k + 1;
+			const vec_divisor_t d = VEC_DIVISOR(ctx->box_mul[pass], ctx->box_shift[pass]);
+			const vec_t round = VEC_SET1(k);
+			vec_t sum, first, p, gone;
+			int slot;
+
+			for (c = 0; c < lanes; c++) {
+				int* ring = scratch->stack + c * div * BLUR_STACK_INTS;
+				int* s = scratch->sums + c * BLUR_SUMS_INTS;
+
+				first = VEC_UNPACK(blur_load_8888(base + c));
+				VEC_STORE(ring, first);
+				sum = VEC_ADD(VEC_MUL_ADD(VEC_ZERO(), first, k), first);
+				for (y = 1; y <= k; y++) {
+					p = VEC_UNPACK(blur_load_8888(base + min(y, hm) * stride + c));
+					VEC_STORE(ring + y * 4, p);
+					sum = VEC_ADD(sum, p);
+				}
+				VEC_STORE(s, sum);
+				VEC_STORE(s + 4, first);
+			}
+
+			slot = k + 1 == n ? 0 : k + 1;
+			for (y = 0;; y++) {
+				rgba* out = base + y * stride;
+				const rgba* in = base + min(y + k + 1, hm) * stride;
+
+				for (c = 0; c < lanes; c++) {
+					int* ring = scratch->stack + c * div * BLUR_STACK_INTS;
+					int* s = scratch->sums + c * BLUR_SUMS_INTS;
+					sum = VEC_LOAD(s);
+
+					blur_store_8888(out + c, VEC_DIVIDE_BY(VEC_ADD(sum, round), d));
+					if (y == hm) {
+						continue;
+					}
+
+					p = VEC_UNPACK(blur_load_8888(in + c));
+					gone = VEC_LOAD(y < k ? s + 4 : ring + slot * 4);
+					VEC_STORE(s, VEC_ADD(sum, VEC_SUB(p, gone)));
+					VEC_STORE(ring + slot * 4, p);
+				}
+				if (y == hm) {
+					break;
+				}
+				if (++slot == n) {
+					slot = 0;
+				}
+			}
+		}
+	}
+}
+
+#undef VEC_BOX_ROWS
+#undef VEC_BOX_COLUMNS
@@ -0,0 +1,608 @@
+#include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
+
+#if defined(BLUR_HAVE_NEON) && !defined(__aarch64__)
+#include <cpu-features.h>
+#endif
+
+#include "blur.h"
+
+/*
+ * The blur itself: worker pool, scratch, kernels and the fast path. Nothing
+ * here knows about JNI or Android bitmaps, CBlurImage.c is the glue and the
+ * host tools in jni/host build this file directly.
+ */
+
+typedef struct {
+	blur_context* ctx;
+	int index;
+} blur_worker;
+
+static void blur_context_select_kernels(blur_context* ctx);
+
+static void* blur_worker_main(void* arg) {
+	blur_worker* worker = (blur_worker*) arg;
+	blur_context* ctx = worker->ctx;
+	int index = worker->index;
+	free(worker);
+
+	/* workers are started before the first job, a job posted before this
+	 * thread got the lock must still be picked up */
+	unsigned seen = 0;
+	pthread_mutex_lock(&ctx->lock);
+	for (;;) {
+		while (!ctx->quit && ctx->generation == seen) {
+			pthread_cond_wait(&ctx->start, &ctx->lock);
+		}
+		if (ctx->quit) {
+			break;
+		}
+		seen = ctx->generation;
+		pthread_mutex_unlock(&ctx->lock);
+
+		ctx->task(ctx, &ctx->scratch[index], index, ctx->threads);
+
+		pthread_mutex_lock(&ctx->lock);
+		if (--ctx->pending == 0) {
+			pthread_cond_signal(&ctx->done);
+		}
+	}
+	pthread_mutex_unlock(&ctx->lock);
+	return NULL;
+}
+
+/*
+ * Runs task over all bands and returns once every band is done. The calling
+ * thread takes band 0 itself.
+ */
+static void blur_context_run(blur_context* ctx, blur_task task) {
+	ctx->task = task;
+	if (ctx->threads > 1) {
+		pthread_mutex_lock(&ctx->lock);
+		ctx->pending = ctx->threads - 1;
+		ctx->generation++;
+		pthread_cond_broadcast(&ctx->start);
+		pthread_mutex_unlock(&ctx->lock);
+	}
+
+	task(ctx, &ctx->scratch[0], 0, ctx->threads);
+
+	if (ctx->threads > 1) {
+		pthread_mutex_lock(&ctx->lock);
+		while (ctx->pending > 0) {
+			pthread_cond_wait(&ctx->done, &ctx->lock);
+		}
+		pthread_mutex_unlock(&ctx->lock);
+	}
+}
+
+static void blur_context_free_buffers(blur_context* ctx) {
+	int i;
+	free(ctx->dv);
+	ctx->dv = NULL;
+	ctx->dv_capacity = -1;
+	for (i = 0; i < ctx->threads; i++) {
+		free(ctx->scratch[i].stack);
+		free(ctx->scratch[i].sums);
+		ctx->scratch[i].stack = NULL;
+		ctx->scratch[i].sums = NULL;
+	}
+	ctx->radius = -1;
+	ctx->capacity = -1;
+}
+
+void blur_context_destroy(blur_context* ctx) {
+	int i;
+	if (ctx == NULL) {
+		return;
+	}
+
+	if (ctx->workers != NULL) {
+		pthread_mutex_lock(&ctx->lock);
+		ctx->quit = 1;
+		pthread_cond_broadcast(&ctx->start);
+		pthread_mutex_unlock(&ctx->lock);
+		for (i = 0; i < ctx->threads - 1; i++) {
+			pthread_join(ctx->workers[i], NULL);
+		}
+		free(ctx->workers);
+	}
+	pthread_mutex_destroy(&ctx->lock);
+	pthread_cond_destroy(&ctx->start);
+	pthread_cond_destroy(&ctx->done);
+
+	if (ctx->scratch != NULL) {
+		blur_context_free_buffers(ctx);
+		free(ctx->scratch);
+	}
+	free(ctx->small);
+	free(ctx->region);
+	free(ctx);
+}
+
+blur_context* blur_context_create(int threads) {
+	int i;
+	blur_context* ctx = (blur_context*) calloc(1, sizeof(blur_context));
+	if (ctx == NULL) {
+		return NULL;
+	}
+	ctx->radius = -1;
+	ctx->capacity = -1;
+	ctx->dv_capacity = -1;
+	blur_context_select_kernels(ctx);
+	pthread_mutex_init(&ctx->lock, NULL);
+	pthread_cond_init(&ctx->start, NULL);
+	pthread_cond_init(&ctx->done, NULL);
+
+	ctx->scratch = (blur_scratch*) calloc(threads, sizeof(blur_scratch));
+	if (ctx->scratch == NULL) {
+		blur_context_destroy(ctx);
+		return NULL;
+	}
+	ctx->threads = threads;
+
+	if (threads > 1) {
+		ctx->workers = (pthread_t*) calloc(threads - 1, sizeof(pthread_t));
+		if (ctx->workers == NULL) {
+			blur_context_destroy(ctx);
+			return NULL;
+		}
+		for (i = 1; i < threads; i++) {
+			blur_worker* worker = (blur_worker*) malloc(sizeof(blur_worker));
+			if (worker != NULL) {
+				worker->ctx = ctx;
+				worker->index = i;
+			}
+			if (worker == NULL || pthread_create(&ctx->workers[i - 1], NULL, blur_worker_main, worker) != 0) {
+				free(worker);
+				/* only join what was started */
+				ctx->threads = i;
+				blur_context_destroy(ctx);
+				return NULL;
+			}
+		}
+	}
+	return ctx;
+}
+
+/*
+ * Makes the scratch buffers fit the radius. Buffers only grow, so once the
+ * largest radius has been seen, blurs with any radius up to it (an animated
+ * radius, for instance) allocate nothing; only the dv table is refilled when
+ * the radius changes. The table is bounded by BLUR_DV_MAX_RADIUS.
+ */
+static int blur_context_prepare(blur_context* ctx, int radius) {
+	int i;
+	if (ctx->radius == radius) {
+		return 0;
+	}
+
+	int div = radius + radius + 1;
+	int divsum = (div + 1) >> 1;
+	divsum *= divsum;
+	size_t dvsize = (size_t) 256 * divsum;
+	size_t j;
+
+	if (radius > ctx->capacity) {
+		blur_context_free_buffers(ctx);
+		for (i = 0; i < ctx->threads; i++) {
+			ctx->scratch[i].stack = (int*) malloc(sizeof(int) * BLUR_TILE_COLUMNS * div * BLUR_STACK_INTS);
+			ctx->scratch[i].sums = (int*) malloc(sizeof(int) * BLUR_TILE_COLUMNS * BLUR_SUMS_INTS);
+			if (ctx->scratch[i].stack == NULL || ctx->scratch[i].sums == NULL) {
+				blur_context_free_buffers(ctx);
+				return -1;
+			}
+		}
+		ctx->capacity = radius;
+	}
+
+	/* only the scalar stack kernels look divisions up, 256 * divsum bytes */
+	if (ctx->kernel == BLUR_KERNEL_STACK && !ctx->simd && radius <= BLUR_DV_MAX_RADIUS) {
+		if (radius > ctx->dv_capacity) {
+			free(ctx->dv);
+			ctx->dv = (uint8_t*) malloc(dvsize);
+			if (ctx->dv == NULL) {
+				/* the table is gone, a later call with this radius must refill it */
+				ctx->dv_capacity = -1;
+				ctx->radius = -1;
+				return -1;
+			}
+			ctx->dv_capacity = radius;
+		}
+		for (j = 0; j < dvsize; j++) {
+			ctx->dv[j] = (uint8_t) (j / divsum);
+		}
+	}
+
+	/*
+	 * With shift = 31 + floor(log2(divsum)) and mul = ceil(2^shift / divsum),
+	 * mul fits in 32 bits and (i * mul) >> shift == i / divsum for every
+	 * i < 256 * divsum as long as divsum < 2^22.
+	 */
+	int shift = 31;
+	for (i = divsum; i > 1; i >>= 1) {
+		shift++;
+	}
+	ctx->div_shift = shift;
+	ctx->div_mul = (uint32_t) (((1ULL << shift) + divsum - 1) / divsum);
+	blur_box_prepare(ctx, radius);
+	ctx->radius = radius;
+	return 0;
+}
+
+#define PIXEL rgba
+#define PIXEL_CHANNELS 4
+#define PIXEL_LOAD(px, c) \
+	((c)[0] = (px)->red, (c)[1] = (px)->green, (c)[2] = (px)->blue, (c)[3] = (px)->alpha)
+#define PIXEL_STORE(px, c) \
+	((px)->red = (uint8_t) (c)[0], (px)->green = (uint8_t) (c)[1], \
+	 (px)->blue = (uint8_t) (c)[2], (px)->alpha = (uint8_t) (c)[3])
+#define SCALAR_ROWS blur_rows_8888
+#define SCALAR_COLUMNS blur_columns_8888
+#include "blur_scalar.h"
+#undef PIXEL
+#undef PIXEL_CHANNELS
+#undef PIXEL_LOAD
+#undef PIXEL_STORE
+#undef SCALAR_ROWS
+#undef SCALAR_COLUMNS
+
+#define PIXEL uint16_t
+#define PIXEL_CHANNELS 3
+#define PIXEL_LOAD(px, c) \
+	((c)[0] = ((*(px) >> 11) << 3) | (*(px) >> 13), \
+	 (c)[1] = (((*(px) >> 5) & 0x3f) << 2) | ((*(px) >> 9) & 0x3), \
+	 (c)[2] = ((*(px) & 0x1f) << 3) | ((*(px) >> 2) & 0x7))
+#define PIXEL_STORE(px, c) (*(px) = blur_pack_565((c)[0], (c)[1], (c)[2]))
+#define SCALAR_ROWS blur_rows_565
+#define SCALAR_COLUMNS blur_columns_565
+#include "blur_scalar.h"
+#undef PIXEL
+#undef PIXEL_CHANNELS
+#undef PIXEL_LOAD
+#undef PIXEL_STORE
+#undef SCALAR_ROWS
+#undef SCALAR_COLUMNS
+
+/*
+ * Whether this CPU can run the vector kernels. NEON is optional on ARMv7 and
+ * has to be probed, on ARMv8 and x86 it is part of the ABI.
+ */
+int blur_simd_supported(void) {
+#if defined(BLUR_HAVE_NEON) && defined(__aarch64__)
+	return 1;
+#elif defined(BLUR_HAVE_NEON)
+	return android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM
+			&& (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0;
+#elif defined(BLUR_HAVE_SSE2)
+	return 1;
+#else
+	return 0;
+#endif
+}
+
+/*
+ * Fills ctx->kernels for the selected kernel, vector ones if requested and
+ * supported. Scalar and vector kernels produce identical output.
+ */
+static void blur_context_select_kernels(blur_context* ctx) {
+	if (ctx->kernel == BLUR_KERNEL_BOX) {
+		blur_kernels_box(ctx->kernels);
+		if (ctx->simd) {
+#if defined(BLUR_HAVE_NEON)
+			blur_box_kernels_neon(ctx->kernels);
+#elif defined(BLUR_HAVE_SSE2)
+			blur_box_kernels_sse2(ctx->kernels);
+#endif
+		}
+		return;
+	}
+	ctx->kernels[BLUR_FORMAT_RGBA_8888].rows = blur_rows_8888;
+	ctx->kernels[BLUR_FORMAT_RGBA_8888].columns = blur_columns_8888;
+	ctx->kernels[BLUR_FORMAT_RGB_565].rows = blur_rows_565;
+	ctx->kernels[BLUR_FORMAT_RGB_565].columns = blur_columns_565;
+	if (!ctx->simd) {
+		return;
+	}
+#if defined(BLUR_HAVE_NEON)
+	blur_kernels_neon(ctx->kernels);
+#elif defined(BLUR_HAVE_SSE2)
+	blur_kernels_sse2(ctx->kernels);
+#endif
+}
+
+/* Both reset the prepared radius, the new kernels may need the dv table. */
+void blur_context_set_simd(blur_context* ctx, int enabled) {
+	ctx->simd = enabled && blur_simd_supported();
+	ctx->radius = -1;
+	blur_context_select_kernels(ctx);
+}
+
+void blur_context_set_kernel(blur_context* ctx, int kernel) {
+	ctx->kernel = kernel;
+	ctx->radius = -1;
+	blur_context_select_kernels(ctx);
+}
+
+static void blur_rows_task(blur_context* ctx, blur_scratch* scratch, int index, int count) {
+	int h = ctx->height;
+	ctx->job_kernels->rows(ctx, scratch, ctx->input, ctx->input_stride, ctx->output, ctx->output_stride, ctx->width, h * index / count, h * (index + 1) / count);
+}
+
+static void blur_columns_task(blur_context* ctx, blur_scratch* scratch, int index, int count) {
+	int w = ctx->width;
+	int tiles = (w + BLUR_TILE_COLUMNS - 1) / BLUR_TILE_COLUMNS;
+	int x0 = tiles * index / count * BLUR_TILE_COLUMNS;
+	int x1 = min(w, tiles * (index + 1) / count * BLUR_TILE_COLUMNS);
+	ctx->job_kernels->columns(ctx, scratch, ctx->output, ctx->output_stride, w, ctx->height, x0, x1);
+}
+
+/*
+ * Blurs input into output with the prepared radius. Every row and every
+ * column is blurred independently, so the result does not depend on the
+ * thread count.
+ */
+static void blur_context_blur(blur_context* ctx, const void* input, int inStride, void* output, int outStride, int w, int h, int format) {
+	ctx->job_kernels = &ctx->kernels[format];
+	ctx->input = input;
+	ctx->output = output;
+	ctx->input_stride = inStride;
+	ctx->output_stride = outStride;
+	ctx->width = w;
+	ctx->height = h;
+	blur_context_run(ctx, blur_rows_task);
+	blur_context_run(ctx, blur_columns_task);
+	ctx->input = NULL;
+	ctx->output = NULL;
+}
+
+static inline uint32_t blur_load(const void* row, int x, int format) {
+	if (format == BLUR_FORMAT_RGB_565) {
+		return blur_load_565((const uint16_t*) row + x);
+	}
+	return blur_load_8888((const rgba*) row + x);
+}
+
+static inline void blur_store(void* row, int x, int format, uint32_t px) {
+	if (format == BLUR_FORMAT_RGB_565) {
+		blur_store_565((uint16_t*) row + x, px);
+	} else {
+		blur_store_8888((rgba*) row + x, px);
+	}
+}
+
+/* Averages factor x factor blocks of source into rows of small. */
+static void blur_downsample_task(blur_context* ctx, blur_scratch* scratch, int index, int count) {
+	int f = ctx->factor;
+	int w = ctx->full_width;
+	int h = ctx->full_height;
+	int sw = ctx->small_width;
+	int sh = ctx->small_height;
+	int format = ctx->format;
+	int stride = ctx->source_stride * blur_bytes_per_pixel(format);
+	int sy, sx, x, y, x1, y1, n;
+	uint32_t px, r, g, b, a;
+
+	for (sy = sh * index / count; sy < sh * (index + 1) / count; sy++) {
+		y1 = min(sy * f + f, h);
+		for (sx = 0; sx < sw; sx++) {
+			x1 = min(sx * f + f, w);
+			r = g = b = a = 0;
+			for (y = sy * f; y < y1; y++) {
+				const uint8_t* in = (const uint8_t*) ctx->source + y * stride;
+				for (x = sx * f; x < x1; x++) {
+					px = blur_load(in, x, format);
+					r += px & 0xff;
+					g += (px >> 8) & 0xff;
+					b += (px >> 16) & 0xff;
+					a += px >> 24;
+				}
+			}
+			n = (y1 - sy * f) * (x1 - sx * f);
+			r = (r + n / 2) / n;
+			g = (g + n / 2) / n;
+			b = (b + n / 2) / n;
+			a = (a + n / 2) / n;
+			blur_store_8888(&ctx->small[sy * sw + sx], r | (g << 8) | (b << 16) | (a << 24));
+		}
+	}
+}
+
+/*
+ * Position of full resolution pixel i in small, in 1/256 pixels, with pixel
+ * centers aligned: (i + 0.5) / factor - 0.5, clamped to the first pixel.
+ */
+static inline int blur_upsample_position(int i, int f) {
+	return max(0, ((2 * i + 1) << 8) / (2 * f) - 128);
+}
+
+/*
+ * Bilinear upsampling of small into rows of target. Positions along a row
+ * advance incrementally, and each pair of small columns is interpolated
+ * vertically once for all pixels between them.
+ */
+static void blur_upsample_task(blur_context* ctx, blur_scratch* scratch, int index, int count) {
+	int f = ctx->factor;
+	int w = ctx->full_width;
+	int h = ctx->full_height;
+	int sw = ctx->small_width;
+	int sh = ctx->small_height;
+	int format = ctx->format;
+	int stride = ctx->target_stride * blur_bytes_per_pixel(format);
+	int f2 = f + f;
+	int x, y, k, px, py, sx, wx, wy, q, rem, current;
+	uint32_t p00, p01, p10, p11, out;
+	int c0[4] = { 0 }, c1[4] = { 0 };
+
+	for (y = h * index / count; y < h * (index + 1) / count; y++) {
+		py = blur_upsample_position(y, f);
+		wy = py & 0xff;
+		const rgba* top = ctx->small + min(py >> 8, sh - 1) * sw;
+		const rgba* bottom = ctx->small + min((py >> 8) + 1, sh - 1) * sw;
+		uint8_t* row = (uint8_t*) ctx->target + y * stride;
+
+		/* q == ((2 * x + 1) << 8) / f2, rem is the remainder */
+		q = 256 / f2;
+		rem = 256 % f2;
+		current = -1;
+		for (x = 0; x < w; x++) {
+			px = max(0, q - 128);
+			sx = px >> 8;
+			wx = px & 0xff;
+
+			if (sx != current) {
+				p00 = blur_load_8888(&top[min(sx, sw - 1)]);
+				p10 = blur_load_8888(&bottom[min(sx, sw - 1)]);
+				p01 = blur_load_8888(&top[min(sx + 1, sw - 1)]);
+				p11 = blur_load_8888(&bottom[min(sx + 1, sw - 1)]);
+				for (k = 0; k < 4; k++) {
+					c0[k] = ((p00 >> (k * 8)) & 0xff) * (256 - wy) + ((p10 >> (k * 8)) & 0xff) * wy;
+					c1[k] = ((p01 >> (k * 8)) & 0xff) * (256 - wy) + ((p11 >> (k * 8)) & 0xff) * wy;
+				}
+				current = sx;
+			}
+
+			out = 0;
+			for (k = 0; k < 4; k++) {
+				out |= (uint32_t) ((c0[k] * (256 - wx) + c1[k] * wx + 32768) >> 16) << (k * 8);
+			}
+			blur_store(row, x, format, out);
+
+			q += 512 / f2;
+			rem += 512 % f2;
+			if (rem >= f2) {
+				rem -= f2;
+				q++;
+			}
+		}
+	}
+}
+
+/*
+ * Scale factor for the fast path, 1 when the blur has to run at full
+ * resolution.
+ */
+static int blur_fast_factor(const blur_context* ctx, int radius, int w, int h) {
+	/* the box kernel costs the same for every radius */
+	if (ctx->exact || radius < blur_fast_min_radius(ctx) || ctx->kernel == BLUR_KERNEL_BOX) {
+		return 1;
+	}
+	int factor = radius / BLUR_FAST_RADIUS;
+	if (min(w, h) < factor * 2) {
+		return 1;
+	}
+	return factor;
+}
+
+/*
+ * Blurs input into output, both in the given format, strides in pixels.
+ * Large radii run on a downscaled RGBA_8888 copy unless the context is exact,
+ * everything else at full resolution. The box kernel only has RGBA_8888
+ * kernels and blurs RGB_565 through a full size RGBA_8888 copy in small.
+ * Returns -1 when out of memory or the radius is not in 0..BLUR_MAX_RADIUS.
+ */
+int blur_context_generate(blur_context* ctx, const void* input, int inStride, void* output, int outStride, int w, int h, int format, int radius) {
+	if (radius < 0 || radius > BLUR_MAX_RADIUS) {
+		return -1;
+	}
+
+	int factor = blur_fast_factor(ctx, radius, w, h);
+	int copy = ctx->kernels[format].rows == NULL;
+	int sw = (w + factor - 1) / factor;
+	int sh = (h + factor - 1) / factor;
+
+	if ((factor > 1 || copy) && ctx->small_capacity < (size_t) sw * sh) {
+		rgba* small = (rgba*) realloc(ctx->small, sizeof(rgba) * sw * sh);
+		if (small == NULL && copy) {
+			return -1;
+		} else if (small == NULL) {
+			/* not worth failing for, the exact blur needs no extra memory */
+			factor = 1;
+		} else {
+			ctx->small = small;
+			ctx->small_capacity = (size_t) sw * sh;
+		}
+	}
+
+	if (factor == 1 && !copy) {
+		if (blur_context_prepare(ctx, radius) < 0) {
+			return -1;
+		}
+		blur_context_blur(ctx, input, inStride, output, outStride, w, h, format);
+		return 0;
+	}
+
+	if (blur_context_prepare(ctx, (radius + factor / 2) / factor) < 0) {
+		return -1;
+	}
+	ctx->factor = factor;
+	ctx->format = format;
+	ctx->small_width = sw;
+	ctx->small_height = sh;
+	ctx->source = input;
+	ctx->target = output;
+	ctx->source_stride = inStride;
+	ctx->target_stride = outStride;
+	ctx->full_width = w;
+	ctx->full_height = h;
+
+	blur_context_run(ctx, blur_downsample_task);
+	blur_context_blur(ctx, ctx->small, sw, ctx->small, sw, sw, sh, BLUR_FORMAT_RGBA_8888);
+	blur_context_run(ctx, blur_upsample_task);
+
+	ctx->source = NULL;
+	ctx->target = NULL;
+	return 0;
+}
+
+/*
+ * Blurs the region [left, right) x [top, bottom) of input, which is w x h, and
+ * writes it to output at (dstX, dstY). Only the region and a margin as wide as
+ * the kernel reaches are read, so outside the margin the input is never
+ * touched. The result is the same as blurring the whole input and copying the
+ * region out.
+ */
+int blur_context_generate_region(blur_context* ctx, const void* input, int inStride, int w, int h,
+		int left, int top, int right, int bottom, void* output, int outStride, int dstX, int dstY, int format, int radius) {
+	if (radius < 0 || radius > BLUR_MAX_RADIUS) {
+		return -1;
+	}
+
+	int bpp = blur_bytes_per_pixel(format);
+	int margin = ctx->kernel == BLUR_KERNEL_BOX ? blur_box_reach(radius) : radius;
+	int x0 = max(0, left - margin);
+	int y0 = max(0, top - margin);
+	int x1 = min(w, right + margin);
+	int y1 = min(h, bottom + margin);
+	int ew = x1 - x0;
+	int eh = y1 - y0;
+	size_t size = (size_t) ew * eh * bpp;
+	int y;
+
+	if (ctx->region_capacity < size) {
+		void* region = realloc(ctx->region, size);
+		if (region == NULL) {
+			return -1;
+		}
+		ctx->region = region;
+		ctx->region_capacity = size;
+	}
+
+	/*
+	 * Edge clamping at the margin only changes pixels outside the region, each
+	 * region pixel's window, over all passes, lies inside the margin or at a
+	 * real image edge.
+	 */
+	const uint8_t* source = (const uint8_t*) input + ((size_t) y0 * inStride + x0) * bpp;
+	if (blur_context_generate(ctx, source, inStride, ctx->region, ew, ew, eh, format, radius) < 0) {
+		return -1;
+	}
+
+	for (y = top; y < bottom; y++) {
+		memcpy((uint8_t*) output + ((size_t) (dstY + y - top) * outStride + dstX) * bpp,
+				(const uint8_t*) ctx->region + ((size_t) (y - y0) * ew + left - x0) * bpp,
+				(size_t) (right - left) * bpp);
+	}
+	return 0;
+}
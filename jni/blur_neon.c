@@ -0,0 +1,79 @@
+#include <stdlib.h>
+#include <arm_neon.h>
+
+#include "blur.h"
+
+/* NEON instantiation of blur_vector.h, only called after the CPU check. */
+
+typedef uint32x4_t vec_t;
+
+#define VEC_ZERO()          vdupq_n_u32(0)
+#define VEC_LOAD(p)         vreinterpretq_u32_s32(vld1q_s32(p))
+#define VEC_STORE(p, v)     vst1q_s32((p), vreinterpretq_s32_u32(v))
+#define VEC_ADD(a, b)       vaddq_u32((a), (b))
+#define VEC_SUB(a, b)       vsubq_u32((a), (b))
+#define VEC_UNPACK(px)      neon_unpack(px)
+#define VEC_MUL_ADD(a, v, n) vmlaq_n_u32((a), (v), (uint32_t) (n))
+#define VEC_DIVIDE_DECL(ctx) \
+	const uint32x2_t div_mul = vdup_n_u32((ctx)->div_mul); \
+	const int64x2_t div_shift = vdupq_n_s64(-(int64_t) (ctx)->div_shift)
+#define VEC_DIVIDE(v)       neon_divide((v), div_mul, div_shift)
+#define VEC_SET1(n)         vdupq_n_u32((uint32_t) (n))
+#define VEC_DIVISOR(mul, shift) neon_divisor((mul), (shift))
+#define VEC_DIVIDE_BY(v, d) neon_divide((v), (d).mul, (d).shift)
+
+typedef struct {
+	uint32x2_t mul;
+	int64x2_t shift;
+} vec_divisor_t;
+
+static inline vec_divisor_t neon_divisor(uint32_t mul, int shift) {
+	vec_divisor_t d;
+	d.mul = vdup_n_u32(mul);
+	d.shift = vdupq_n_s64(-(int64_t) shift);
+	return d;
+}
+
+static inline uint32x4_t neon_unpack(uint32_t px) {
+	uint8x8_t v = vreinterpret_u8_u32(vdup_n_u32(px));
+	return vmovl_u16(vget_low_u16(vmovl_u8(v)));
+}
+
+static inline uint32_t neon_divide(uint32x4_t v, uint32x2_t mul, int64x2_t shift) {
+	/* a negative shift count shifts right */
+	uint64x2_t lo = vshlq_u64(vmull_u32(vget_low_u32(v), mul), shift);
+	uint64x2_t hi = vshlq_u64(vmull_u32(vget_high_u32(v), mul), shift);
+	uint16x4_t q16 = vmovn_u32(vcombine_u32(vmovn_u64(lo), vmovn_u64(hi)));
+	uint8x8_t q8 = vmovn_u16(vcombine_u16(q16, q16));
+	return vget_lane_u32(vreinterpret_u32_u8(q8), 0);
+}
+
+#define VEC_PIXEL           rgba
+#define VEC_PIXEL_LOAD(p)   blur_load_8888(p)
+#define VEC_PIXEL_STORE(p, px) blur_store_8888((p), (px))
+#define VEC_ROWS            blur_rows_8888_neon
+#define VEC_COLUMNS         blur_columns_8888_neon
+#include "blur_vector.h"
+
+#define VEC_PIXEL           uint16_t
+#define VEC_PIXEL_LOAD(p)   blur_load_565(p)
+#define VEC_PIXEL_STORE(p, px) blur_store_565((p), (px))
+#define VEC_ROWS            blur_rows_565_neon
+#define VEC_COLUMNS         blur_columns_565_neon
+#include "blur_vector.h"
+
+#define VEC_BOX_ROWS        blur_box_rows_neon
+#define VEC_BOX_COLUMNS     blur_box_columns_neon
+#include "blur_box_vector.h"
+
+void blur_kernels_neon(blur_kernels* kernels) {
+	kernels[BLUR_FORMAT_RGBA_8888].rows = blur_rows_8888_neon;
+	kernels[BLUR_FORMAT_RGBA_8888].columns = blur_columns_8888_neon;
+	kernels[BLUR_FORMAT_RGB_565].rows = blur_rows_565_neon;
+	kernels[BLUR_FORMAT_RGB_565].columns = blur_columns_565_neon;
+}
+
+void blur_box_kernels_neon(blur_kernels* kernels) {
+	kernels[BLUR_FORMAT_RGBA_8888].rows = blur_box_rows_neon;
+	kernels[BLUR_FORMAT_RGBA_8888].columns = blur_box_columns_neon;
+}
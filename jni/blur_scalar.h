@@ -0,0 +1,173 @@
+/*
+ * Scalar stack blur kernels, instantiated once per pixel format by
+ * CBlurImage.c. Every channel of the format is blurred, alpha included, which
+ * is what premultiplied RGBA_8888 needs.
+ *
+ * The including file defines before including this header:
+ *
+ *   PIXEL                    pixel type
+ *   PIXEL_CHANNELS           channels per pixel, at most BLUR_STACK_INTS
+ *   PIXEL_LOAD(px, c)        unpacks *px into the ints c[0..PIXEL_CHANNELS)
+ *   PIXEL_STORE(px, c)       packs the 8-bit values c[] into *px
+ *   SCALAR_ROWS, SCALAR_COLUMNS  names of the generated kernels
+ *
+ * Sums are divided through the dv table up to BLUR_DV_MAX_RADIUS, above it
+ * with the exact multiply-shift of the vector kernels.
+ */
+
+#ifndef BLUR_SCALAR_DIVIDE
+#define BLUR_SCALAR_DIVIDE
+static inline int blur_scalar_divide(const uint8_t* dv, uint32_t mul, int shift, int sum) {
+	return dv != NULL ? dv[sum] : (int) (((uint64_t) (uint32_t) sum * mul) >> shift);
+}
+#endif
+
+/*
+ * Horizontal pass: blurs rows [y0, y1) of input into output. input and output
+ * may be the same buffer, each pixel is read before its column is written.
+ */
+static void SCALAR_ROWS(const blur_context* ctx, blur_scratch* scratch, const void* input, int inStride, void* output, int outStride, int w, int y0, int y1) {
+	const uint8_t* dv = ctx->radius <= BLUR_DV_MAX_RADIUS ? ctx->dv : NULL;
+	uint32_t mul = ctx->div_mul;
+	int shift = ctx->div_shift;
+	int radius = ctx->radius;
+	int div = radius + radius + 1;
+	int r1 = radius + 1;
+	int wm = w - 1;
+	int (*stack)[PIXEL_CHANNELS] = (int (*)[PIXEL_CHANNELS]) scratch->stack;
+
+	int sum[PIXEL_CHANNELS], insum[PIXEL_CHANNELS], outsum[PIXEL_CHANNELS], p[PIXEL_CHANNELS];
+	int x, y, i, k, ir, rbs, stackpointer;
+
+	for (y = y0; y < y1; y++) {
+		const PIXEL* in = (const PIXEL*) input + y * inStride;
+		PIXEL* out = (PIXEL*) output + y * outStride;
+
+		for (k = 0; k < PIXEL_CHANNELS; k++) {
+			sum[k] = insum[k] = outsum[k] = 0;
+		}
+		for (i = -radius; i <= radius; i++) {
+			PIXEL_LOAD(&in[min(wm, max(i, 0))], p);
+
+			ir = i + radius;
+			rbs = r1 - abs(i);
+			for (k = 0; k < PIXEL_CHANNELS; k++) {
+				stack[ir][k] = p[k];
+				sum[k] += p[k] * rbs;
+				if (i > 0) {
+					insum[k] += p[k];
+				} else {
+					outsum[k] += p[k];
+				}
+			}
+		}
+		stackpointer = radius;
+
+		for (x = 0; x < w; x++) {
+			for (k = 0; k < PIXEL_CHANNELS; k++) {
+				p[k] = blur_scalar_divide(dv, mul, shift, sum[k]);
+			}
+			PIXEL_STORE(&out[x], p);
+
+			ir = (stackpointer + r1) % div;
+			PIXEL_LOAD(&in[min(x + r1, wm)], p);
+
+			for (k = 0; k < PIXEL_CHANNELS; k++) {
+				sum[k] -= outsum[k];
+				outsum[k] -= stack[ir][k];
+				stack[ir][k] = p[k];
+				insum[k] += p[k];
+				sum[k] += insum[k];
+			}
+
+			stackpointer = (stackpointer + 1) % div;
+			ir = stackpointer;
+
+			for (k = 0; k < PIXEL_CHANNELS; k++) {
+				outsum[k] += stack[ir][k];
+				insum[k] -= stack[ir][k];
+			}
+		}
+	}
+}
+
+/*
+ * Vertical pass: blurs columns [x0, x1) of image in place, BLUR_TILE_COLUMNS
+ * columns at a time. Row y + radius + 1 is read before row y is written, so no
+ * copy of the image is needed.
+ */
+static void SCALAR_COLUMNS(const blur_context* ctx, blur_scratch* scratch, void* image, int stride, int w, int h, int x0, int x1) {
+	const uint8_t* dv = ctx->radius <= BLUR_DV_MAX_RADIUS ? ctx->dv : NULL;
+	uint32_t mul = ctx->div_mul;
+	int shift = ctx->div_shift;
+	int radius = ctx->radius;
+	int div = radius + radius + 1;
+	int r1 = radius + 1;
+	int hm = h - 1;
+
+	int p[PIXEL_CHANNELS];
+	int y, i, c, k, n, ir, rbs, stackpointer;
+
+	for (; x0 < x1; x0 += BLUR_TILE_COLUMNS) {
+		n = min(BLUR_TILE_COLUMNS, x1 - x0);
+
+		for (c = 0; c < n; c++) {
+			int (*stack)[PIXEL_CHANNELS] = (int (*)[PIXEL_CHANNELS]) (scratch->stack + c * div * BLUR_STACK_INTS);
+			int* sum = scratch->sums + c * BLUR_SUMS_INTS;
+			int* insum = sum + PIXEL_CHANNELS;
+			int* outsum = insum + PIXEL_CHANNELS;
+			for (k = 0; k < PIXEL_CHANNELS; k++) {
+				sum[k] = insum[k] = outsum[k] = 0;
+			}
+
+			for (i = -radius; i <= radius; i++) {
+				PIXEL_LOAD((const PIXEL*) image + min(max(i, 0), hm) * stride + x0 + c, p);
+
+				ir = i + radius;
+				rbs = r1 - abs(i);
+				for (k = 0; k < PIXEL_CHANNELS; k++) {
+					stack[ir][k] = p[k];
+					sum[k] += p[k] * rbs;
+					if (i > 0) {
+						insum[k] += p[k];
+					} else {
+						outsum[k] += p[k];
+					}
+				}
+			}
+		}
+		stackpointer = radius;
+
+		for (y = 0; y < h; y++) {
+			PIXEL* out = (PIXEL*) image + y * stride + x0;
+			const PIXEL* in = (const PIXEL*) image + min(y + r1, hm) * stride + x0;
+			int irOut = (stackpointer + r1) % div;
+			int irIn = (stackpointer + 1) % div;
+
+			for (c = 0; c < n; c++) {
+				int (*stack)[PIXEL_CHANNELS] = (int (*)[PIXEL_CHANNELS]) (scratch->stack + c * div * BLUR_STACK_INTS);
+				int* sum = scratch->sums + c * BLUR_SUMS_INTS;
+				int* insum = sum + PIXEL_CHANNELS;
+				int* outsum = insum + PIXEL_CHANNELS;
+
+				for (k = 0; k < PIXEL_CHANNELS; k++) {
+					p[k] = blur_scalar_divide(dv, mul, shift, sum[k]);
+				}
+				PIXEL_STORE(&out[c], p);
+
+				PIXEL_LOAD(&in[c], p);
+
+				for (k = 0; k < PIXEL_CHANNELS; k++) {
+					sum[k] -= outsum[k];
+					outsum[k] -= stack[irOut][k];
+					stack[irOut][k] = p[k];
+					insum[k] += p[k];
+					sum[k] += insum[k];
+					outsum[k] += stack[irIn][k];
+					insum[k] -= stack[irIn][k];
+				}
+			}
+			stackpointer = irIn;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+#include <stdlib.h>
+#include <emmintrin.h>
+
+#include "blur.h"
+
+/* SSE2 instantiation of blur_vector.h, x86 and x86_64 always have SSE2. */
+
+typedef __m128i vec_t;
+
+#define VEC_ZERO()          _mm_setzero_si128()
+#define VEC_LOAD(p)         _mm_loadu_si128((const __m128i*) (p))
+#define VEC_STORE(p, v)     _mm_storeu_si128((__m128i*) (p), (v))
+#define VEC_ADD(a, b)       _mm_add_epi32((a), (b))
+#define VEC_SUB(a, b)       _mm_sub_epi32((a), (b))
+#define VEC_UNPACK(px)      sse2_unpack(px)
+/* lanes hold 16-bit values, so the 16-bit multiply-add is a 32-bit multiply */
+#define VEC_MUL_ADD(a, v, n) _mm_add_epi32((a), _mm_madd_epi16((v), _mm_set1_epi32(n)))
+#define VEC_DIVIDE_DECL(ctx) \
+	const __m128i div_mul = _mm_set1_epi32((int) (ctx)->div_mul); \
+	const __m128i div_shift = _mm_cvtsi32_si128((ctx)->div_shift)
+#define VEC_DIVIDE(v)       sse2_divide((v), div_mul, div_shift)
+#define VEC_SET1(n)         _mm_set1_epi32(n)
+#define VEC_DIVISOR(mul, shift) sse2_divisor((mul), (shift))
+#define VEC_DIVIDE_BY(v, d) sse2_divide((v), (d).mul, (d).shift)
+
+typedef struct {
+	__m128i mul;
+	__m128i shift;
+} vec_divisor_t;
+
+static inline vec_divisor_t sse2_divisor(uint32_t mul, int shift) {
+	vec_divisor_t d;
+	d.mul = _mm_set1_epi32((int) mul);
+	d.shift = _mm_cvtsi32_si128(shift);
+	return d;
+}
+
+static inline __m128i sse2_unpack(uint32_t px) {
+	const __m128i zero = _mm_setzero_si128();
+	__m128i v = _mm_cvtsi32_si128((int) px);
+	v = _mm_unpacklo_epi8(v, zero);
+	return _mm_unpacklo_epi16(v, zero);
+}
+
+static inline uint32_t sse2_divide(__m128i v, __m128i mul, __m128i shift) {
+	/* _mm_mul_epu32 multiplies lanes 0 and 2 into 64 bits, lanes 1 and 3 go
+	 * through a second multiply after shifting them down */
+	__m128i even = _mm_srl_epi64(_mm_mul_epu32(v, mul), shift);
+	__m128i odd = _mm_srl_epi64(_mm_mul_epu32(_mm_srli_epi64(v, 32), mul), shift);
+	__m128i q = _mm_or_si128(even, _mm_slli_epi64(odd, 32));
+	q = _mm_packs_epi32(q, q);
+	q = _mm_packus_epi16(q, q);
+	return (uint32_t) _mm_cvtsi128_si32(q);
+}
+
+#define VEC_PIXEL           rgba
+#define VEC_PIXEL_LOAD(p)   blur_load_8888(p)
+#define VEC_PIXEL_STORE(p, px) blur_store_8888((p), (px))
+#define VEC_ROWS            blur_rows_8888_sse2
+#define VEC_COLUMNS         blur_columns_8888_sse2
+#include "blur_vector.h"
+
+#define VEC_PIXEL           uint16_t
+#define VEC_PIXEL_LOAD(p)   blur_load_565(p)
+#define VEC_PIXEL_STORE(p, px) blur_store_565((p), (px))
+#define VEC_ROWS            blur_rows_565_sse2
+#define VEC_COLUMNS         blur_columns_565_sse2
+#include "blur_vector.h"
+
+#define VEC_BOX_ROWS        blur_box_rows_sse2
+#define VEC_BOX_COLUMNS     blur_box_columns_sse2
+#include "blur_box_vector.h"
+
+void blur_kernels_sse2(blur_kernels* kernels) {
+	kernels[BLUR_FORMAT_RGBA_8888].rows = blur_rows_8888_sse2;
+	kernels[BLUR_FORMAT_RGBA_8888].columns = blur_columns_8888_sse2;
+	kernels[BLUR_FORMAT_RGB_565].rows = blur_rows_565_sse2;
+	kernels[BLUR_FORMAT_RGB_565].columns = blur_columns_565_sse2;
+}
+
+void blur_box_kernels_sse2(blur_kernels* kernels) {
+	kernels[BLUR_FORMAT_RGBA_8888].rows = blur_box_rows_sse2;
+	kernels[BLUR_FORMAT_RGBA_8888].columns = blur_box_columns_sse2;
+}
@@ -0,0 +1,167 @@
+/*
+ * Vector stack blur kernels, shared by the SSE2 and NEON builds and
+ * instantiated once per pixel format.
+ *
+ * Each pixel is one vector of four 32-bit lanes (red, green, blue, alpha), so
+ * every channel is blurred with a single instruction. 16-bit lanes would
+ * overflow, the weighted sum reaches 255 * (radius + 1)^2. The dv lookup is
+ * replaced by an exact multiply-shift with ctx->div_mul and ctx->div_shift,
+ * which keeps the output identical to the scalar kernels.
+ *
+ * The including file defines before including this header:
+ *
+ *   vec_t                    four 32-bit lanes
+ *   VEC_ZERO()               all lanes 0
+ *   VEC_LOAD(p)              load 4 ints from p, unaligned
+ *   VEC_STORE(p, v)          store 4 ints to p, unaligned
+ *   VEC_ADD(a, b), VEC_SUB(a, b)
+ *   VEC_UNPACK(px)           uint32_t rgba pixel to 4 lanes
+ *   VEC_MUL_ADD(acc, v, n)   acc + v * n, n < 2^15
+ *   VEC_DIVIDE_DECL(ctx)     declarations VEC_DIVIDE needs
+ *   VEC_DIVIDE(v)            4 lanes divided by divsum, packed to a pixel
+ *   VEC_PIXEL                pixel type
+ *   VEC_PIXEL_LOAD(p)        *p as a uint32_t rgba pixel
+ *   VEC_PIXEL_STORE(p, px)   stores the uint32_t rgba pixel px to *p
+ *   VEC_ROWS, VEC_COLUMNS    names of the generated kernels
+ *
+ * The pixel macros and kernel names are undefined again at the end, so the
+ * header can be included once per format.
+ */
+
+static void VEC_ROWS(const blur_context* ctx, blur_scratch* scratch, const void* input, int inStride, void* output, int outStride, int w, int y0, int y1) {
+	int radius = ctx->radius;
+	int div = radius + radius + 1;
+	int r1 = radius + 1;
+	int wm = w - 1;
+	int* stack = scratch->stack;
+	VEC_DIVIDE_DECL(ctx);
+
+	vec_t sum, insum, outsum, p;
+	int x, y, i, irOut, stackpointer;
+
+	for (y = y0; y < y1; y++) {
+		const VEC_PIXEL* in = (const VEC_PIXEL*) input + y * inStride;
+		VEC_PIXEL* out = (VEC_PIXEL*) output + y * outStride;
+
+		sum = insum = outsum = VEC_ZERO();
+		for (i = -radius; i <= radius; i++) {
+			p = VEC_UNPACK(VEC_PIXEL_LOAD(&in[min(wm, max(i, 0))]));
+			VEC_STORE(stack + (i + radius) * 4, p);
+			sum = VEC_MUL_ADD(sum, p, r1 - abs(i));
+			if (i > 0) {
+				insum = VEC_ADD(insum, p);
+			} else {
+				outsum = VEC_ADD(outsum, p);
+			}
+		}
+		stackpointer = radius;
+
+		for (x = 0; x < w; x++) {
+			VEC_PIXEL_STORE(&out[x], VEC_DIVIDE(sum));
+
+			sum = VEC_SUB(sum, outsum);
+
+			irOut = stackpointer + r1;
+			if (irOut >= div) {
+				irOut -= div;
+			}
+			outsum = VEC_SUB(outsum, VEC_LOAD(stack + irOut * 4));
+
+			p = VEC_UNPACK(VEC_PIXEL_LOAD(&in[min(x + r1, wm)]));
+			VEC_STORE(stack + irOut * 4, p);
+
+			insum = VEC_ADD(insum, p);
+			sum = VEC_ADD(sum, insum);
+
+			if (++stackpointer == div) {
+				stackpointer = 0;
+			}
+			p = VEC_LOAD(stack + stackpointer * 4);
+			outsum = VEC_ADD(outsum, p);
+			insum = VEC_SUB(insum, p);
+		}
+	}
+}
+
+static void VEC_COLUMNS(const blur_context* ctx, blur_scratch* scratch, void* image, int stride, int w, int h, int x0, int x1) {
+	int radius = ctx->radius;
+	int div = radius + radius + 1;
+	int r1 = radius + 1;
+	int hm = h - 1;
+	VEC_DIVIDE_DECL(ctx);
+
+	vec_t sum, insum, outsum, p;
+	int y, i, c, n, stackpointer;
+
+	for (; x0 < x1; x0 += BLUR_TILE_COLUMNS) {
+		n = min(BLUR_TILE_COLUMNS, x1 - x0);
+
+		for (c = 0; c < n; c++) {
+			int* stack = scratch->stack + c * div * BLUR_STACK_INTS;
+			int* s = scratch->sums + c * BLUR_SUMS_INTS;
+
+			sum = insum = outsum = VEC_ZERO();
+			for (i = -radius; i <= radius; i++) {
+				p = VEC_UNPACK(VEC_PIXEL_LOAD((const VEC_PIXEL*) image + min(max(i, 0), hm) * stride + x0 + c));
+				VEC_STORE(stack + (i + radius) * 4, p);
+				sum = VEC_MUL_ADD(sum, p, r1 - abs(i));
+				if (i > 0) {
+					insum = VEC_ADD(insum, p);
+				} else {
+					outsum = VEC_ADD(outsum, p);
+				}
+			}
+			VEC_STORE(s, sum);
+			VEC_STORE(s + 4, insum);
+			VEC_STORE(s + 8, outsum);
+		}
+		stackpointer = radius;
+
+		for (y = 0; y < h; y++) {
+			VEC_PIXEL* out = (VEC_PIXEL*) image + y * stride + x0;
+			const VEC_PIXEL* in = (const VEC_PIXEL*) image + min(y + r1, hm) * stride + x0;
+			int irOut = stackpointer + r1;
+			int irIn = stackpointer + 1;
+			if (irOut >= div) {
+				irOut -= div;
+			}
+			if (irIn == div) {
+				irIn = 0;
+			}
+
+			for (c = 0; c < n; c++) {
+				int* stack = scratch->stack + c * div * BLUR_STACK_INTS;
+				int* s = scratch->sums + c * BLUR_SUMS_INTS;
+				sum = VEC_LOAD(s);
+				insum = VEC_LOAD(s + 4);
+				outsum = VEC_LOAD(s + 8);
+
+				VEC_PIXEL_STORE(&out[c], VEC_DIVIDE(sum));
+
+				sum = VEC_SUB(sum, outsum);
+				outsum = VEC_SUB(outsum, VEC_LOAD(stack + irOut * 4));
+
+				p = VEC_UNPACK(VEC_PIXEL_LOAD(&in[c]));
+				VEC_STORE(stack + irOut * 4, p);
+
+				insum = VEC_ADD(insum, p);
+				sum = VEC_ADD(sum, insum);
+
+				p = VEC_LOAD(stack + irIn * 4);
+				outsum = VEC_ADD(outsum, p);
+				insum = VEC_SUB(insum, p);
+
+				VEC_STORE(s, sum);
+				VEC_STORE(s + 4, insum);
+				VEC_STORE(s + 8, outsum);
+			}
+			stackpointer = irIn;
+		}
+	}
+}
+
+#undef VEC_PIXEL
+#undef VEC_PIXEL_LOAD
+#undef VEC_PIXEL_STORE
+#undef VEC_ROWS
+#undef VEC_COLUMNS
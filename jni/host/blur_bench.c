@@ -0,0 +1,371 @@
+/*
+ * Host benchmark and golden image check for the blur core.
+ *
+ *   blur_bench [-t threads] [-n repeats]   throughput over sizes x radii
+ *   blur_bench -g golden.txt                check against golden hashes
+ *   blur_bench -u golden.txt                rewrite the golden hashes
+ *   blur_bench -w dir                       write the golden outputs as PPM
+ *
+ * Throughput is megapixels of output per second, best of the repeats. The
+ * golden check blurs a generated image with every kernel, format and mode,
+ * scalar and vector, and compares a hash of each output with the file; the
+ * core is integer only, so the hashes are the same on every host. Exact modes
+ * also blur a region and compare it with the same pixels of the full output.
+ * Exits with 1 when a hash differs or is missing, or a region differs.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "blur.h"
+
+static const int SIZES[][2] = { { 320, 240 }, { 720, 480 }, { 1280, 720 }, { 1920, 1080 } };
+#define SIZE_COUNT ((int) (sizeof(SIZES) / sizeof(SIZES[0])))
+
+static const int RADII[] = { 2, 8, 16, 24, 50, 100 };
+#define RADIUS_COUNT ((int) (sizeof(RADII) / sizeof(RADII[0])))
+
+/* Odd size and padded rows, so tiles, bands and strides all have leftovers. */
+#define GOLDEN_WIDTH 257
+#define GOLDEN_HEIGHT 131
+#define GOLDEN_PADDING 3
+
+static const int GOLDEN_RADII[] = { 0, 1, 5, 24, 60, 100, 160 };
+#define GOLDEN_RADIUS_COUNT ((int) (sizeof(GOLDEN_RADII) / sizeof(GOLDEN_RADII[0])))
+
+/* Region blurred on its own, near a corner so one margin is clamped by the image edge. */
+#define GOLDEN_REGION_LEFT 11
+#define GOLDEN_REGION_TOP 40
+#define GOLDEN_REGION_RIGHT 150
+#define GOLDEN_REGION_BOTTOM 97
+
+typedef struct {
+	const char* name;
+	int kernel;
+	int simd;
+	int exact;
+} blur_mode;
+
+static const blur_mode MODES[] = {
+	{ "stack-scalar-exact", BLUR_KERNEL_STACK, 0, 1 },
+	{ "stack-vector-exact", BLUR_KERNEL_STACK, 1, 1 },
+	{ "stack-scalar-fast", BLUR_KERNEL_STACK, 0, 0 },
+	{ "stack-vector-fast", BLUR_KERNEL_STACK, 1, 0 },
+	{ "box-scalar", BLUR_KERNEL_BOX, 0, 1 },
+	{ "box-vector", BLUR_KERNEL_BOX, 1, 1 },
+};
+#define MODE_COUNT ((int) (sizeof(MODES) / sizeof(MODES[0])))
+
+static double now_ms(void) {
+	struct timespec t;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return t.tv_sec * 1e3 + t.tv_nsec / 1e6;
+}
+
+/* xorshift32, rand() differs between C libraries and the image must not */
+static uint32_t next_random(uint32_t* state) {
+	uint32_t x = *state;
+	x ^= x << 13;
+	x ^= x >> 17;
+	x ^= x << 5;
+	return *state = x;
+}
+
+/* Gradients, hard edges, noise and a transparent corner. */
+static void fill_image(void* pixels, int stride, int w, int h, int format) {
+	uint32_t state = 2463534242u;
+	int x, y;
+	for (y = 0; y < h; y++) {
+		for (x = 0; x < w; x++) {
+			uint32_t noise = next_random(&state);
+			int edge = ((x / 29) + (y / 17)) % 2 ? 150 : 0;
+			uint32_t r = (uint32_t) min(255, x * 200 / w + edge / 3 + (int) (noise & 0x1f));
+			uint32_t g = (uint32_t) min(255, y * 200 / h + edge / 2 + (int) ((noise >> 8) & 0x1f));
+			uint32_t b = (uint32_t) min(255, edge + (int) ((noise >> 16) & 0x3f));
+			uint32_t a = x < w / 4 && y < h / 4 ? (uint32_t) (x * 255 / (w / 4 + 1)) : 255;
+			if (format == BLUR_FORMAT_RGB_565) {
+				((uint16_t*) pixels)[y * stride + x] = blur_pack_565(r, g, b);
+			} else {
+				/* premultiplied, like Android bitmaps */
+				blur_store_8888((rgba*) pixels + y * stride + x,
+						(r * a / 255) | ((g * a / 255) << 8) | ((b * a / 255) << 16) | (a << 24));
+			}
+		}
+	}
+}
+
+static blur_context* create_context(const blur_mode* mode, int threads) {
+	blur_context* ctx = blur_context_create(threads);
+	if (ctx == NULL) {
+		fprintf(stderr, "out of memory\n");
+		exit(2);
+	}
+	blur_context_set_simd(ctx, mode->simd);
+	blur_context_set_kernel(ctx, mode->kernel);
+	ctx->exact = mode->exact;
+	return ctx;
+}
+
+static void benchmark(int threads, int repeats) {
+	int m, s, r, i;
+
+	printf("megapixels per second, %d thread%s, best of %d%s\n", threads, threads == 1 ? "" : "s", repeats,
+			blur_simd_supported() ? "" : ", no vector kernels on this host");
+	for (m = 0; m < MODE_COUNT; m++) {
+		const blur_mode* mode = &MODES[m];
+		blur_context* ctx = create_context(mode, threads);
+		if (mode->simd && !ctx->simd) {
+			blur_context_destroy(ctx);
+			continue;
+		}
+
+		printf("\n%-20s", mode->name);
+		for (r = 0; r < RADIUS_COUNT; r++) {
+			printf("   r=%-4d", RADII[r]);
+		}
+		printf("\n");
+
+		for (s = 0; s < SIZE_COUNT; s++) {
+			int w = SIZES[s][0];
+			int h = SIZES[s][1];
+			rgba* image = malloc(sizeof(rgba) * w * h);
+			rgba* out = malloc(sizeof(rgba) * w * h);
+			fill_image(image, w, w, h, BLUR_FORMAT_RGBA_8888);
+
+			printf("%5dx%-14d", w, h);
+			for (r = 0; r < RADIUS_COUNT; r++) {
+				double best = 1e30;
+				for (i = 0; i < repeats; i++) {
+					double start = now_ms();
+					blur_context_generate(ctx, image, w, out, w, w, h, BLUR_FORMAT_RGBA_8888, RADII[r]);
+					double t = now_ms() - start;
+					if (t < best) {
+						best = t;
+					}
+				}
+				printf(" %8.1f", w * h / 1e3 / best);
+			}
+			printf("\n");
+			free(image);
+			free(out);
+		}
+		blur_context_destroy(ctx);
+	}
+}
+
+/* FNV-1a over the visible pixels, padding excluded. */
+static uint64_t hash_image(const void* pixels, int stride, int w, int h, int format) {
+	int bpp = blur_bytes_per_pixel(format);
+	uint64_t hash = 14695981039346656037ULL;
+	int y, i;
+	for (y = 0; y < h; y++) {
+		const uint8_t* row = (const uint8_t*) pixels + (size_t) y * stride * bpp;
+		for (i = 0; i < w * bpp; i++) {
+			hash = (hash ^ row[i]) * 1099511628211ULL;
+		}
+	}
+	return hash;
+}
+
+static void write_ppm(const char* dir, const char* name, const void* pixels, int stride, int w, int h, int format) {
+	char path[512];
+	int x, y;
+	snprintf(path, sizeof(path), "%s/%s.ppm", dir, name);
+	FILE* file = fopen(path, "wb");
+	if (file == NULL) {
+		perror(path);
+		return;
+	}
+	fprintf(file, "P6\n%d %d\n255\n", w, h);
+	for (y = 0; y < h; y++) {
+		for (x = 0; x < w; x++) {
+			uint32_t px = format == BLUR_FORMAT_RGB_565
+					? blur_load_565((const uint16_t*) pixels + y * stride + x)
+					: blur_load_8888((const rgba*) pixels + y * stride + x);
+			fputc(px & 0xff, file);
+			fputc((px >> 8) & 0xff, file);
+			fputc((px >> 16) & 0xff, file);
+		}
+	}
+	fclose(file);
+}
+
+/* Blurs the golden region alone and compares it with output, the full blur. 0 if equal. */
+static int check_region(blur_context* ctx, const void* input, const void* output, void* region, int stride, int format, int radius) {
+	int bpp = blur_bytes_per_pixel(format);
+	int w = GOLDEN_REGION_RIGHT - GOLDEN_REGION_LEFT;
+	int y;
+
+	if (blur_context_generate_region(ctx, input, stride, GOLDEN_WIDTH, GOLDEN_HEIGHT, GOLDEN_REGION_LEFT, GOLDEN_REGION_TOP,
+			GOLDEN_REGION_RIGHT, GOLDEN_REGION_BOTTOM, region, w, 0, 0, format, radius) < 0) {
+		fprintf(stderr, "out of memory\n");
+		exit(2);
+	}
+	for (y = GOLDEN_REGION_TOP; y < GOLDEN_REGION_BOTTOM; y++) {
+		if (memcmp((const uint8_t*) output + ((size_t) y * stride + GOLDEN_REGION_LEFT) * bpp,
+				(const uint8_t*) region + (size_t) (y - GOLDEN_REGION_TOP) * w * bpp, (size_t) w * bpp) != 0) {
+			return 1;
+		}
+	}
+	return 0;
+}
+
+/* Looks name up in the golden file, 0 if missing. */
+static int find_golden(const char* golden, const char* name, uint64_t* hash) {
+	char line[256], key[128];
+	unsigned long long value;
+	int found = 0;
+	FILE* file = fopen(golden, "r");
+	if (file == NULL) {
+		return 0;
+	}
+	while (!found && fgets(line, sizeof(line), file) != NULL) {
+		if (sscanf(line, "%127s %llx", key, &value) == 2 && strcmp(key, name) == 0) {
+			*hash = value;
+			found = 1;
+		}
+	}
+	fclose(file);
+	return found;
+}
+
+/*
+ * Runs every golden case. With update set the hashes are written to golden,
+ * otherwise compared with it; with dir set the outputs are written as PPM.
+ */
+static int golden_cases(const char* golden, int update, const char* dir) {
+	static const int formats[] = { BLUR_FORMAT_RGBA_8888, BLUR_FORMAT_RGB_565 };
+	static const char* formatNames[] = { "8888", "565" };
+	int w = GOLDEN_WIDTH;
+	int h = GOLDEN_HEIGHT;
+	int stride = w + GOLDEN_PADDING;
+	int failures = 0, checked = 0;
+	int f, m, r;
+	FILE* out = NULL;
+
+	if (update && (out = fopen(golden, "w")) == NULL) {
+		perror(golden);
+		return 1;
+	}
+
+	for (f = 0; f < 2; f++) {
+		int bpp = blur_bytes_per_pixel(formats[f]);
+		uint8_t* input = calloc((size_t) stride * h, bpp);
+		uint8_t* output = calloc((size_t) stride * h, bpp);
+		uint8_t* region = calloc((size_t) stride * h, bpp);
+		fill_image(input, stride, w, h, formats[f]);
+
+		for (m = 0; m < MODE_COUNT; m++) {
+			/* 3 threads, the result must not depend on the count */
+			blur_context* ctx = create_context(&MODES[m], 3);
+			if (MODES[m].simd && !ctx->simd) {
+				blur_context_destroy(ctx);
+				continue;
+			}
+
+			for (r = 0; r < GOLDEN_RADIUS_COUNT; r++) {
+				char name[128];
+				uint64_t expected;
+				/*
+				 * scalar and vector kernels share golden hashes; below its fast
+				 * minimum a fast mode must give the exact result
+				 */
+				int fast = !MODES[m].exact && GOLDEN_RADII[r] >= blur_fast_min_radius(ctx);
+				const char* kernel = MODES[m].kernel == BLUR_KERNEL_BOX ? "box" : fast ? "stack-fast" : "stack-exact";
+				snprintf(name, sizeof(name), "%s-%s-r%d", formatNames[f], kernel, GOLDEN_RADII[r]);
+
+				if (blur_context_generate(ctx, input, stride, output, stride, w, h, formats[f], GOLDEN_RADII[r]) < 0) {
+					fprintf(stderr, "out of memory\n");
+					exit(2);
+				}
+				uint64_t hash = hash_image(output, stride, w, h, formats[f]);
+
+				/* the fast path scales the region by itself, only exact modes match the crop */
+				if (golden != NULL && !update && MODES[m].exact) {
+					checked++;
+					if (check_region(ctx, input, output, region, stride, formats[f], GOLDEN_RADII[r]) != 0) {
+						printf("FAIL %s-region (%s): differs from the cropped full blur\n", name, MODES[m].name);
+						failures++;
+					}
+				}
+
+				if (dir != NULL) {
+					write_ppm(dir, name, output, stride, w, h, formats[f]);
+				}
+				if (update) {
+					/* written once, the vector mode must match the scalar one */
+					if (!MODES[m].simd && (MODES[m].exact || fast)) {
+						fprintf(out, "%s %016llx\n", name, (unsigned long long) hash);
+					}
+					continue;
+				}
+				if (golden == NULL) {
+					continue;
+				}
+
+				checked++;
+				if (!find_golden(golden, name, &expected)) {
+					printf("MISSING %s (%s)\n", name, MODES[m].name);
+					failures++;
+				} else if (expected != hash) {
+					printf("FAIL %s (%s): %016llx, golden %016llx\n", name, MODES[m].name,
+							(unsigned long long) hash, (unsigned long long) expected);
+					failures++;
+				}
+			}
+			blur_context_destroy(ctx);
+		}
+		free(input);
+		free(output);
+		free(region);
+	}
+
+	if (update) {
+		fclose(out);
+		printf("wrote %s\n", golden);
+	} else if (golden != NULL) {
+		printf("%d golden cases, %d failed\n", checked, failures);
+	}
+	return failures ? 1 : 0;
+}
+
+int main(int argc, char** argv) {
+	int threads = 1;
+	int repeats = 5;
+	const char* golden = NULL;
+	const char* dir = NULL;
+	int update = 0;
+	int opt;
+
+	while ((opt = getopt(argc, argv, "t:n:g:u:w:")) != -1) {
+		switch (opt) {
+		case 't':
+			threads = max(1, atoi(optarg));
+			break;
+		case 'n':
+			repeats = max(1, atoi(optarg));
+			break;
+		case 'g':
+			golden = optarg;
+			break;
+		case 'u':
+			golden = optarg;
+			update = 1;
+			break;
+		case 'w':
+			dir = optarg;
+			break;
+		default:
+			fprintf(stderr, "usage: %s [-t threads] [-n repeats] [-g golden | -u golden] [-w dir]\n", argv[0]);
+			return 2;
+		}
+	}
+
+	if (golden != NULL || dir != NULL) {
+		return golden_cases(golden, update, dir);
+	}
+	benchmark(threads, repeats);
+	return 0;
+}
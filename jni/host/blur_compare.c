@@ -0,0 +1,282 @@
+/*
+ * Compares the stack and box kernels: speed on a 1280x720 image and error
+ * against a true Gaussian of the same variance, radius * (radius + 2) / 6,
+ * computed in floating point with clamped edges.
+ *
+ * Also checks that the box kernel gives the same result in place, with any
+ * thread count, with the vector kernels and through the RGB_565 copy, that
+ * region blurs of both kernels equal the cropped full blur, and exits with 1
+ * if not.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include <time.h>
+
+#include "blur.h"
+
+#define SPEED_WIDTH 1280
+#define SPEED_HEIGHT 720
+#define ERROR_WIDTH 480
+#define ERROR_HEIGHT 320
+
+static const int RADII[] = { 2, 5, 10, 20, 40, 80 };
+#define RADIUS_COUNT ((int) (sizeof(RADII) / sizeof(RADII[0])))
+
+static double now_ms(void) {
+	struct timespec t;
+	clock_gettime(CLOCK_MONOTONIC, &t);
+	return t.tv_sec * 1e3 + t.tv_nsec / 1e6;
+}
+
+/* Smooth gradients, hard edges and some noise, like a photo with text on it. */
+static void fill_image(rgba* image, int w, int h) {
+	int x, y;
+	srand(1);
+	for (y = 0; y < h; y++) {
+		for (x = 0; x < w; x++) {
+			rgba* p = &image[y * w + x];
+			int edge = ((x / 37) + (y / 23)) % 2 ? 160 : 0;
+			p->red = (uint8_t) min(255, x * 255 / w / 2 + edge / 2 + rand() % 32);
+			p->green = (uint8_t) min(255, y * 255 / h / 2 + edge / 3 + rand() % 32);
+			p->blue = (uint8_t) min(255, (x + y) * 255 / (w + h) / 2 + edge / 4 + rand() % 32);
+			p->alpha = 255;
+		}
+	}
+}
+
+/* Separable Gaussian in float, edges clamped like the kernels. */
+static void gaussian(const rgba* in, float* out, int w, int h, int radius) {
+	double sigma = sqrt(radius * (radius + 2) / 6.0);
+	int reach = (int) ceil(sigma * 4);
+	float* weights = malloc(sizeof(float) * (2 * reach + 1));
+	float* tmp = malloc(sizeof(float) * w * h * 4);
+	double total = 0;
+	int x, y, i, c;
+
+	for (i = -reach; i <= reach; i++) {
+		weights[i + reach] = (float) (sigma > 0 ? exp(-i * i / (2 * sigma * sigma)) : (i == 0));
+		total += weights[i + reach];
+	}
+	for (i = 0; i <= 2 * reach; i++) {
+		weights[i] /= (float) total;
+	}
+
+	for (y = 0; y < h; y++) {
+		for (x = 0; x < w; x++) {
+			float acc[4] = { 0, 0, 0, 0 };
+			for (i = -reach; i <= reach; i++) {
+				const uint8_t* p = (const uint8_t*) &in[y * w + min(w - 1, max(0, x + i))];
+				for (c = 0; c < 4; c++) {
+					acc[c] += p[c] * weights[i + reach];
+				}
+			}
+			memcpy(&tmp[(y * w + x) * 4], acc, sizeof(acc));
+		}
+	}
+	for (y = 0; y < h; y++) {
+		for (x = 0; x < w; x++) {
+			float acc[4] = { 0, 0, 0, 0 };
+			for (i = -reach; i <= reach; i++) {
+				const float* p = &tmp[(min(h - 1, max(0, y + i)) * w + x) * 4];
+				for (c = 0; c < 4; c++) {
+					acc[c] += p[c] * weights[i + reach];
+				}
+			}
+			memcpy(&out[(y * w + x) * 4], acc, sizeof(acc));
+		}
+	}
+	free(weights);
+	free(tmp);
+}
+
+static void error(const rgba* image, const float* reference, int w, int h, double* mean, double* worst) {
+	double sum = 0;
+	int i;
+	*worst = 0;
+	for (i = 0; i < w * h * 4; i++) {
+		double e = fabs(((const uint8_t*) image)[i] - reference[i]);
+		sum += e;
+		if (e > *worst) {
+			*worst = e;
+		}
+	}
+	*mean = sum / (w * h * 4);
+}
+
+static double best_time(blur_context* ctx, const rgba* in, rgba* out, int w, int h, int radius) {
+	double best = 1e30;
+	int i;
+	for (i = 0; i < 5; i++) {
+		double start = now_ms();
+		blur_context_generate(ctx, in, w, out, w, w, h, BLUR_FORMAT_RGBA_8888, radius);
+		double t = now_ms() - start;
+		if (t < best) {
+			best = t;
+		}
+	}
+	return best;
+}
+
+/* Box results must not depend on threads, in place, vectors or the 565 copy. */
+static int check_box(const rgba* image, int w, int h) {
+	blur_context* one = blur_context_create(1);
+	blur_context* three = blur_context_create(3);
+	rgba* a = malloc(sizeof(rgba) * w * h);
+	rgba* b = malloc(sizeof(rgba) * w * h);
+	uint16_t* c = malloc(sizeof(uint16_t) * w * h);
+	uint16_t* d = malloc(sizeof(uint16_t) * w * h);
+	int failures = 0;
+	int i, r;
+
+	blur_context_set_kernel(one, BLUR_KERNEL_BOX);
+	blur_context_set_simd(three, 1);
+	blur_context_set_kernel(three, BLUR_KERNEL_BOX);
+	for (i = 0; i < w * h; i++) {
+		c[i] = blur_pack_565(image[i].red, image[i].green, image[i].blue);
+	}
+
+	for (r = 0; r <= 30; r += 3) {
+		blur_context_generate(one, image, w, a, w, w, h, BLUR_FORMAT_RGBA_8888, r);
+		memcpy(b, image, sizeof(rgba) * w * h);
+		blur_context_generate(three, b, w, b, w, w, h, BLUR_FORMAT_RGBA_8888, r);
+		if (memcmp(a, b, sizeof(rgba) * w * h) != 0) {
+			printf("FAIL box radius %d: in place, 3 threads or vectors differ\n", r);
+			failures++;
+		}
+
+		/* the 565 copy must equal blurring the widened pixels */
+		for (i = 0; i < w * h; i++) {
+			blur_store_8888(&b[i], blur_load_565(&c[i]));
+		}
+		blur_context_generate(one, b, w, b, w, w, h, BLUR_FORMAT_RGBA_8888, r);
+		blur_context_generate(three, c, w, d, w, w, h, BLUR_FORMAT_RGB_565, r);
+		for (i = 0; i < w * h; i++) {
+			if (d[i] != blur_pack_565(b[i].red, b[i].green, b[i].blue)) {
+				printf("FAIL box radius %d: RGB_565 differs at %d\n", r, i);
+				failures++;
+				break;
+			}
+		}
+	}
+
+	blur_context_destroy(one);
+	blur_context_destroy(three);
+	free(a);
+	free(b);
+	free(c);
+	free(d);
+	return failures;
+}
+
+/* Region blurs must equal the full blur cropped, for both kernels and formats. */
+static int check_regions(const rgba* image, int w, int h) {
+	static const int kernels[] = { BLUR_KERNEL_STACK, BLUR_KERNEL_BOX };
+	static const char* kernelNames[] = { "stack", "box" };
+	uint16_t* image565 = malloc(sizeof(uint16_t) * w * h);
+	uint8_t* full = malloc(sizeof(rgba) * w * h);
+	uint8_t* region = malloc(sizeof(rgba) * w * h);
+	int failures = 0;
+	int i, k, f, y;
+
+	for (i = 0; i < w * h; i++) {
+		image565[i] = blur_pack_565(image[i].red, image[i].green, image[i].blue);
+	}
+
+	srand(2);
+	for (k = 0; k < 2; k++) {
+		blur_context* ctx = blur_context_create(2);
+		blur_context_set_simd(ctx, 1);
+		blur_context_set_kernel(ctx, kernels[k]);
+		ctx->exact = 1;
+
+		for (f = 0; f < 2; f++) {
+			int format = f == 0 ? BLUR_FORMAT_RGBA_8888 : BLUR_FORMAT_RGB_565;
+			int bpp = blur_bytes_per_pixel(format);
+			const void* input = f == 0 ? (const void*) image : (const void*) image565;
+			int mismatches = 0;
+
+			for (i = 0; i < 200; i++) {
+				int r = rand() % 31;
+				int left = rand() % w;
+				int top = rand() % h;
+				int right = left + 1 + rand() % (w - left);
+				int bottom = top + 1 + rand() % (h - top);
+
+				blur_context_generate(ctx, input, w, full, w, w, h, format, r);
+				blur_context_generate_region(ctx, input, w, w, h, left, top, right, bottom, region, w, 0, 0, format, r);
+				for (y = top; y < bottom; y++) {
+					if (memcmp(full + ((size_t) y * w + left) * bpp, region + (size_t) (y - top) * w * bpp,
+							(size_t) (right - left) * bpp) != 0) {
+						mismatches++;
+						break;
+					}
+				}
+			}
+			if (mismatches) {
+				printf("FAIL %s %s regions: %d of 200 differ from the cropped blur\n", kernelNames[k],
+						f == 0 ? "8888" : "565", mismatches);
+				failures++;
+			}
+		}
+		blur_context_destroy(ctx);
+	}
+
+	free(image565);
+	free(full);
+	free(region);
+	return failures;
+}
+
+int main(void) {
+	rgba* image = malloc(sizeof(rgba) * SPEED_WIDTH * SPEED_HEIGHT);
+	rgba* out = malloc(sizeof(rgba) * SPEED_WIDTH * SPEED_HEIGHT);
+	float* reference = malloc(sizeof(float) * ERROR_WIDTH * ERROR_HEIGHT * 4);
+	blur_context* stack = blur_context_create(1);
+	blur_context* box = blur_context_create(1);
+	int i;
+
+	blur_context_set_simd(stack, 1);
+	stack->exact = 1;
+	blur_context_set_simd(box, 1);
+	blur_context_set_kernel(box, BLUR_KERNEL_BOX);
+
+	printf("%s kernels, %dx%d for speed, %dx%d for error vs Gaussian (0..255)\n\n",
+			stack->simd ? "vector" : "scalar", SPEED_WIDTH, SPEED_HEIGHT, ERROR_WIDTH, ERROR_HEIGHT);
+	printf("radius   stack ms   box ms   stack mean/max   box mean/max   box sizes\n");
+
+	for (i = 0; i < RADIUS_COUNT; i++) {
+		int r = RADII[i];
+		double stackMean, stackMax, boxMean, boxMax;
+
+		fill_image(image, SPEED_WIDTH, SPEED_HEIGHT);
+		double stackTime = best_time(stack, image, out, SPEED_WIDTH, SPEED_HEIGHT, r);
+		double boxTime = best_time(box, image, out, SPEED_WIDTH, SPEED_HEIGHT, r);
+
+		fill_image(image, ERROR_WIDTH, ERROR_HEIGHT);
+		gaussian(image, reference, ERROR_WIDTH, ERROR_HEIGHT, r);
+		blur_context_generate(stack, image, ERROR_WIDTH, out, ERROR_WIDTH, ERROR_WIDTH, ERROR_HEIGHT, BLUR_FORMAT_RGBA_8888, r);
+		error(out, reference, ERROR_WIDTH, ERROR_HEIGHT, &stackMean, &stackMax);
+		blur_context_generate(box, image, ERROR_WIDTH, out, ERROR_WIDTH, ERROR_WIDTH, ERROR_HEIGHT, BLUR_FORMAT_RGBA_8888, r);
+		error(out, reference, ERROR_WIDTH, ERROR_HEIGHT, &boxMean, &boxMax);
+
+		printf("%6d   %8.1f   %6.1f   %6.2f / %5.1f   %5.2f / %5.1f   %d %d %d\n", r, stackTime, boxTime,
+				stackMean, stackMax, boxMean, boxMax,
+				2 * box->box_radius[0] + 1, 2 * box->box_radius[1] + 1, 2 * box->box_radius[2] + 1);
+	}
+
+	fill_image(image, 101, 67);
+	int failures = check_box(image, 101, 67);
+	printf("\n%s\n", failures ? "box checks FAILED" : "box checks passed");
+	int regionFailures = check_regions(image, 101, 67);
+	printf("%s\n", regionFailures ? "region checks FAILED" : "region checks passed");
+	failures += regionFailures;
+
+	blur_context_destroy(stack);
+	blur_context_destroy(box);
+	free(image);
+	free(out);
+	free(reference);
+	return failures ? 1 : 0;
+}
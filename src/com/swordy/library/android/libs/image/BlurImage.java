@@ -1,12 +1,32 @@
 package com.swordy.library.android.libs.image;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 
 /**
  * 高斯模糊<br>
- * 
+ *
  * 原帖地址：<a>http://blog.csdn.net/coc_me_game/article/details/8951730</a>
- * 
+ * <p>
+ * 每个实例是一个模糊会话，持有一块native scratch内存，大小只与半径和线程数有关，与图片大小无关，
+ * 在多次调用之间复用，只在半径超过之前的最大半径时增长。使用完毕后调用{@link #release()}释放。
+ * <p>
+ * 动画模糊（每帧一张新结果）可以用{@link #blur(Bitmap, int)}原地模糊，
+ * 或用{@link #blurToBuffer(Bitmap, int)}写入会话持有的输出图，稳定后每帧不再分配内存。
+ * <p>
+ * 多线程模式下，水平模糊按行、垂直模糊按列分给固定数量的native工作线程，
+ * 结果与单线程完全相同。
+ * <p>
+ * CPU支持时（ARM NEON、x86 SSE2）默认使用向量化实现，一次处理一个像素的四个通道，
+ * 结果与标量实现完全相同。
+ * <p>
+ * 半径不小于{@link #FAST_MIN_RADIUS}时默认走快速模式，见{@link #setExact(boolean)}。
+ * <p>
+ * 可以在stack blur和三次box blur两种算法之间选择，见{@link Kernel}。
+ * <p>
+ * 支持ARGB_8888和RGB_565两种格式，直接在原格式上模糊，不需要先转换成ARGB_8888。
+ * ARGB_8888的alpha通道（预乘）与颜色通道一起模糊，透明边缘不会出现黑边。
+ *
  * @author swordy
  *
  */
@@ -14,6 +34,351 @@ public class BlurImage {
 	static {
 		System.loadLibrary("CBlurImage");
 	}
-	
-	public static native void generate(Bitmap bitmapIn, Bitmap bitmapOut, int radius);
+
+	/**
+	 * 默认的SIMD实现下快速模式生效的最小半径，与jni/blur.h中的BLUR_FAST_MIN_RADIUS一致。
+	 * SIMD实现的精确模糊足够快，半径约100以上缩小才划算
+	 */
+	public static final int FAST_MIN_RADIUS = 128;
+
+	/**
+	 * 不支持或关闭SIMD时快速模式生效的最小半径，与jni/blur.h中的BLUR_FAST_MIN_RADIUS_SCALAR一致
+	 */
+	public static final int FAST_MIN_RADIUS_SCALAR = 24;
+
+	/**
+	 * 最大半径，与jni/blur.h中的BLUR_MAX_RADIUS一致。再大时查找表的大小和定点除法都会溢出
+	 */
+	public static final int MAX_RADIUS = 2046;
+
+	/**
+	 * 模糊算法，顺序与jni/blur.h中的BLUR_KERNEL_*一致
+	 */
+	public enum Kernel {
+		/**
+		 * stack blur，默认。三角形权重，近似高斯
+		 */
+		STACK,
+		/**
+		 * 连续三次box blur，方差与同半径的stack blur相同，更接近真正的高斯：
+		 * 与浮点高斯的平均误差约0.3，stack blur约0.8（每通道0~255，主机实测）。
+		 * 每像素耗时与半径无关，不需要与半径平方成正比的查找表，但比stack blur慢约2倍；
+		 * 没有快速模式，RGB_565会先转成ARGB_8888再模糊
+		 */
+		BOX
+	}
+
+	private static BlurImage sDefault;
+
+	private long mNativeContext;
+
+	private Kernel mKernel = Kernel.STACK;
+
+	private Bitmap[] mBuffers = new Bitmap[2];
+	private int mNextBuffer;
+
+	/**
+	 * 创建单线程的模糊实例
+	 */
+	public BlurImage() {
+		this(1);
+	}
+
+	/**
+	 * @param threadCount 参与模糊的线程数（包括调用线程），
+	 * 通常为{@link #getDefaultThreadCount()}
+	 */
+	public BlurImage(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount must be positive: " + threadCount);
+		}
+
+		mNativeContext = nativeCreate(threadCount);
+		if (mNativeContext == 0) {
+			throw new OutOfMemoryError("can not create native blur context");
+		}
+	}
+
+	/**
+	 * @return 当前设备的CPU核数
+	 */
+	public static int getDefaultThreadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * 使用共享的默认实例（单线程）进行模糊
+	 * @see #blur(Bitmap, Bitmap, int)
+	 */
+	public static void generate(Bitmap bitmapIn, Bitmap bitmapOut, int radius) {
+		getDefault().blur(bitmapIn, bitmapOut, radius);
+	}
+
+	/**
+	 * 使用共享的默认实例（单线程）原地模糊
+	 * @see #blur(Bitmap, int)
+	 */
+	public static void generate(Bitmap bitmap, int radius) {
+		generate(bitmap, bitmap, radius);
+	}
+
+	/**
+	 * 使用共享的默认实例（单线程）模糊一个区域
+	 * @see #blur(Bitmap, Rect, Bitmap, int, int, int)
+	 */
+	public static void generate(Bitmap bitmapIn, Rect src, Bitmap bitmapOut, int dstX, int dstY, int radius) {
+		getDefault().blur(bitmapIn, src, bitmapOut, dstX, dstY, radius);
+	}
+
+	private static synchronized BlurImage getDefault() {
+		if (sDefault == null) {
+			sDefault = new BlurImage();
+		}
+		return sDefault;
+	}
+
+	/**
+	 * 原地模糊，结果写回bitmap，不需要第二张图
+	 * @param bitmap 可变的 ARGB_8888 或 RGB_565 图
+	 * @param radius 模糊半径
+	 */
+	public void blur(Bitmap bitmap, int radius) {
+		blur(bitmap, bitmap, radius);
+	}
+
+	/**
+	 * 只模糊bitmap中的region区域，结果写回原处，区域外的像素不变
+	 * @see #blur(Bitmap, Rect, Bitmap, int, int, int)
+	 */
+	public void blur(Bitmap bitmap, Rect region, int radius) {
+		blur(bitmap, region, bitmap, region.left, region.top, radius);
+	}
+
+	/**
+	 * 只模糊源图中的src区域，写到bitmapOut的(dstX, dstY)处。
+	 * <p>
+	 * 只读取src及其外围一圈像素，宽度为算法能影响到的距离：STACK为radius，BOX为三次box半径之和，
+	 * 略大于radius。结果与模糊整张图后截取src完全相同（精确模式下），
+	 * 工作量与src加外围的面积成正比。例如1080p上200px高的条带约快4倍。
+	 * @param bitmapIn ARGB_8888 或 RGB_565 的源图
+	 * @param src 要模糊的区域，必须在bitmapIn内且不为空
+	 * @param bitmapOut 与源图格式相同的可变图，可以与bitmapIn为同一张图，
+	 * 大小只需容纳(dstX, dstY)起src大小的区域
+	 * @param dstX 结果在bitmapOut中的左边
+	 * @param dstY 结果在bitmapOut中的上边
+	 * @param radius 模糊半径
+	 */
+	public synchronized void blur(Bitmap bitmapIn, Rect src, Bitmap bitmapOut, int dstX, int dstY, int radius) {
+		if (mNativeContext == 0) {
+			throw new IllegalStateException("BlurImage has been released");
+		}
+		checkRegion(bitmapIn, src, bitmapOut, dstX, dstY, radius);
+		nativeGenerateRegion(mNativeContext, bitmapIn, src.left, src.top, src.right, src.bottom, bitmapOut, dstX, dstY, radius);
+	}
+
+	/**
+	 * 模糊到会话持有的输出图中并返回该图。
+	 * <p>
+	 * 输出图按{@link #setBufferCount(int)}个轮流使用（默认2个），只在源图大小或格式变化时重新创建，
+	 * 因此返回的图在之后第bufferCount次调用时会被覆盖。输出图归会话所有，调用者不要recycle，
+	 * 需要长期保留时请自行复制。
+	 * @param bitmapIn ARGB_8888 或 RGB_565 的源图
+	 * @param radius 模糊半径
+	 * @return 与源图大小、格式相同的模糊结果
+	 */
+	public synchronized Bitmap blurToBuffer(Bitmap bitmapIn, int radius) {
+		if (mNativeContext == 0) {
+			throw new IllegalStateException("BlurImage has been released");
+		}
+
+		int index = mNextBuffer;
+		mNextBuffer = (mNextBuffer + 1) % mBuffers.length;
+
+		Bitmap buffer = mBuffers[index];
+		if (buffer == null || buffer.isRecycled() || buffer.getWidth() != bitmapIn.getWidth()
+				|| buffer.getHeight() != bitmapIn.getHeight() || buffer.getConfig() != bitmapIn.getConfig()) {
+			// 旧图可能还在显示，交给GC而不是recycle
+			mBuffers[index] = null;
+			buffer = Bitmap.createBitmap(bitmapIn.getWidth(), bitmapIn.getHeight(), bitmapIn.getConfig());
+			mBuffers[index] = buffer;
+		}
+
+		blur(bitmapIn, buffer, radius);
+		return buffer;
+	}
+
+	/**
+	 * 设置{@link #blurToBuffer(Bitmap, int)}轮流使用的输出图个数，默认2个：
+	 * 一个正在显示，一个用于生成下一帧。改变个数会回收已有的输出图
+	 */
+	public synchronized void setBufferCount(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("count must be positive: " + count);
+		}
+		if (count != mBuffers.length) {
+			releaseBuffers();
+			mBuffers = new Bitmap[count];
+			mNextBuffer = 0;
+		}
+	}
+
+	/**
+	 * 回收{@link #blurToBuffer(Bitmap, int)}的输出图，下次调用时重新创建。
+	 * 调用前请确认输出图已不再显示
+	 */
+	public synchronized void releaseBuffers() {
+		for (int i = 0; i < mBuffers.length; i++) {
+			if (mBuffers[i] != null) {
+				mBuffers[i].recycle();
+				mBuffers[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * @param bitmapIn ARGB_8888 或 RGB_565 的源图
+	 * @param bitmapOut 与源图大小、格式相同的图，可以与bitmapIn为同一张图。
+	 * RGB_565每次模糊多一次量化，与先转ARGB_8888模糊再转回相比，每通道最多差一个565量化级
+	 * @param radius 模糊半径
+	 */
+	public synchronized void blur(Bitmap bitmapIn, Bitmap bitmapOut, int radius) {
+		if (mNativeContext == 0) {
+			throw new IllegalStateException("BlurImage has been released");
+		}
+		checkBitmaps(bitmapIn, bitmapOut, radius);
+		nativeGenerate(mNativeContext, bitmapIn, bitmapOut, radius);
+	}
+
+	/**
+	 * 是否强制精确模式，默认false。
+	 * <p>
+	 * 非精确模式下，半径不小于{@link #FAST_MIN_RADIUS}（标量实现为{@link #FAST_MIN_RADIUS_SCALAR}）时
+	 * 先将图片缩小radius / 8倍，用约为8的半径模糊，再双线性插值放大回bitmapOut。
+	 * 1080p单线程主机实测：标量实现半径24约快1.7倍、50约快2.5倍；SIMD实现半径128约快1.1倍、
+	 * 192约快1.2倍，更小的半径缩小反而更慢，所以不走快速模式。
+	 * <p>
+	 * 与精确结果的误差（每通道0~255，主机实测）：平滑内容（渐变、大块色边）平均误差不超过1.5，
+	 * 与模糊尺度相近的高对比周期图案（如32px棋盘格）平均误差可达5；
+	 * 个别像素在图片边缘和锐利跳变处最大可差约50。需要逐像素一致时请打开精确模式。
+	 */
+	public synchronized void setExact(boolean exact) {
+		if (mNativeContext == 0) {
+			throw new IllegalStateException("BlurImage has been released");
+		}
+		nativeSetExact(mNativeContext, exact);
+	}
+
+	/**
+	 * 选择模糊算法，默认{@link Kernel#STACK}
+	 */
+	public synchronized void setKernel(Kernel kernel) {
+		if (mNativeContext == 0) {
+			throw new IllegalStateException("BlurImage has been released");
+		}
+		nativeSetKernel(mNativeContext, kernel.ordinal());
+		mKernel = kernel;
+	}
+
+	/**
+	 * @return 当前的模糊算法
+	 */
+	public synchronized Kernel getKernel() {
+		return mKernel;
+	}
+
+	/**
+	 * @return 当前CPU是否支持向量化的模糊实现
+	 */
+	public static boolean isSimdSupported() {
+		return nativeIsSimdSupported();
+	}
+
+	/**
+	 * 是否使用向量化实现，默认开启；CPU不支持时始终使用标量实现
+	 */
+	public synchronized void setSimdEnabled(boolean enabled) {
+		if (mNativeContext == 0) {
+			throw new IllegalStateException("BlurImage has been released");
+		}
+		nativeSetSimdEnabled(mNativeContext, enabled);
+	}
+
+	/**
+	 * 释放native scratch内存和输出图，之后该实例不可再使用
+	 */
+	public synchronized void release() {
+		releaseBuffers();
+		if (mNativeContext != 0) {
+			nativeDestroy(mNativeContext);
+			mNativeContext = 0;
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			// 输出图可能仍被调用者持有，这里只释放native内存
+			synchronized (this) {
+				if (mNativeContext != 0) {
+					nativeDestroy(mNativeContext);
+					mNativeContext = 0;
+				}
+			}
+		} finally {
+			super.finalize();
+		}
+	}
+
+	private static void checkBitmaps(Bitmap bitmapIn, Bitmap bitmapOut, int radius) {
+		if (bitmapIn.getWidth() != bitmapOut.getWidth() || bitmapIn.getHeight() != bitmapOut.getHeight()) {
+			throw new IllegalArgumentException("bitmapOut is not the same size as bitmapIn");
+		}
+		checkFormats(bitmapIn, bitmapOut, radius);
+	}
+
+	private static void checkRegion(Bitmap bitmapIn, Rect src, Bitmap bitmapOut, int dstX, int dstY, int radius) {
+		if (src.isEmpty() || src.left < 0 || src.top < 0
+				|| src.right > bitmapIn.getWidth() || src.bottom > bitmapIn.getHeight()) {
+			throw new IllegalArgumentException("src is empty or not inside bitmapIn: " + src);
+		}
+		if (dstX < 0 || dstY < 0 || dstX + src.width() > bitmapOut.getWidth() || dstY + src.height() > bitmapOut.getHeight()) {
+			throw new IllegalArgumentException("destination (" + dstX + ", " + dstY + ") does not fit in bitmapOut");
+		}
+		checkFormats(bitmapIn, bitmapOut, radius);
+	}
+
+	private static void checkFormats(Bitmap bitmapIn, Bitmap bitmapOut, int radius) {
+		if (radius < 0 || radius > MAX_RADIUS) {
+			throw new IllegalArgumentException("radius must be in 0.." + MAX_RADIUS + ": " + radius);
+		}
+
+		Bitmap.Config config = bitmapIn.getConfig();
+		if (config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565) {
+			throw new IllegalArgumentException("only ARGB_8888 or RGB_565 bitmaps can be blurred");
+		}
+		if (bitmapOut.getConfig() != config) {
+			throw new IllegalArgumentException("bitmapIn and bitmapOut must have the same config");
+		}
+
+		if (!bitmapOut.isMutable()) {
+			throw new IllegalArgumentException("bitmapOut is immutable");
+		}
+	}
+
+	private static native long nativeCreate(int threadCount);
+
+	private static native void nativeDestroy(long context);
+
+	private static native void nativeSetSimdEnabled(long context, boolean enabled);
+
+	private static native void nativeSetExact(long context, boolean exact);
+
+	private static native void nativeSetKernel(long context, int kernel);
+
+	private static native boolean nativeIsSimdSupported();
+
+	private static native void nativeGenerate(long context, Bitmap bitmapIn, Bitmap bitmapOut, int radius);
+
+	private static native void nativeGenerateRegion(long context, Bitmap bitmapIn, int left, int top, int right, int bottom,
+			Bitmap bitmapOut, int dstX, int dstY, int radius);
 }
@@ -0,0 +1,353 @@
+package com.swordy.library.android.libs.image;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 异步模糊服务<br>
+ *
+ * 在一个后台线程上用{@link BlurImage}模糊，结果在主线程回调，避免在UI线程模糊造成卡顿。
+ * <p>
+ * 每个请求属于一个target（通常是显示结果的View）。同一target的新请求会取代还在排队的旧请求（合并），
+ * 正在模糊的旧请求完成后也不再回调，因此内容快速变化时不会堆积过时的工作。
+ * 排队的target数有上限，超出时丢弃最早的请求。
+ * <p>
+ * 通过{@link #getStats()}可以获得队列深度和延迟等统计。
+ *
+ * @author swordy
+ *
+ */
+public class BlurService {
+	private static final String TAG = "BlurService";
+
+	/**
+	 * 结果回调，都在主线程调用
+	 */
+	public interface Callback {
+		/**
+		 * @param target 提交时的target
+		 * @param bitmapOut 提交时的bitmapOut，已写入模糊结果
+		 */
+		void onBlurred(Object target, Bitmap bitmapOut);
+
+		/**
+		 * @param target 提交时的target
+		 * @param e 模糊时抛出的异常，如参数不合法；Error（如OutOfMemoryError）包装为RuntimeException，原异常为其cause
+		 */
+		void onBlurFailed(Object target, RuntimeException e);
+	}
+
+	/**
+	 * 统计快照，时间单位为毫秒
+	 */
+	public static class Stats {
+		/** 当前排队的请求数 */
+		public int queueDepth;
+		/** 排队请求数的最大值 */
+		public int maxQueueDepth;
+		/** 已提交的请求数 */
+		public long submitted;
+		/** 已回调onBlurred的请求数 */
+		public long completed;
+		/** 已回调onBlurFailed的请求数 */
+		public long failed;
+		/** 被同一target的新请求取代的请求数 */
+		public long coalesced;
+		/** 队列满时被丢弃的请求数 */
+		public long dropped;
+		/** 被取消的请求数 */
+		public long cancelled;
+		/** 从提交到回调的平均延迟和最大延迟 */
+		public long averageLatency;
+		public long maxLatency;
+		/** 平均模糊耗时（不含排队） */
+		public long averageBlurTime;
+
+		@Override
+		public String toString() {
+			return "BlurService.Stats[queueDepth=" + queueDepth + ", maxQueueDepth=" + maxQueueDepth + ", submitted="
+					+ submitted + ", completed=" + completed + ", failed=" + failed + ", coalesced=" + coalesced
+					+ ", dropped=" + dropped + ", cancelled=" + cancelled + ", averageLatency=" + averageLatency
+					+ "ms, maxLatency=" + maxLatency + "ms, averageBlurTime=" + averageBlurTime + "ms]";
+		}
+	}
+
+	private static class Request {
+		Object target;
+		Bitmap bitmapIn;
+		Bitmap bitmapOut;
+		int radius;
+		Callback callback;
+		long submitTime;
+		/** 被取消或被取代后不再回调，只在BlurService的锁内读写 */
+		boolean cancelled;
+	}
+
+	private final BlurImage mBlur;
+	private final boolean mOwnBlur;
+	private final int mCapacity;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	/** 按提交顺序排队的请求，key为target */
+	private final LinkedHashMap<Object, Request> mPending = new LinkedHashMap<Object, Request>();
+	/** 已出队但还没回调的请求（正在模糊或等待主线程），key为target */
+	private final HashMap<Object, Request> mUndelivered = new HashMap<Object, Request>();
+	private Thread mThread;
+	private boolean mShutdown;
+
+	// 统计，只在锁内读写
+	private int mMaxQueueDepth;
+	private long mSubmitted;
+	private long mCompleted;
+	private long mFailed;
+	private long mCoalesced;
+	private long mDropped;
+	private long mCancelled;
+	private long mLatencySum;
+	private long mMaxLatency;
+	private long mBlurTimeSum;
+
+	/**
+	 * 使用自己的{@link BlurImage}，线程数为CPU核数，{@link #shutdown()}时释放
+	 * @param capacity 最多排队的target数
+	 */
+	public BlurService(int capacity) {
+		this(capacity, new BlurImage(BlurImage.getDefaultThreadCount()), true);
+	}
+
+	/**
+	 * @param capacity 最多排队的target数
+	 * @param blur 用于模糊的实例，由调用者负责释放
+	 */
+	public BlurService(int capacity, BlurImage blur) {
+		this(capacity, blur, false);
+	}
+
+	private BlurService(int capacity, BlurImage blur, boolean ownBlur) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		mCapacity = capacity;
+		mBlur = blur;
+		mOwnBlur = ownBlur;
+	}
+
+	/**
+	 * 提交一个模糊请求，参数含义同{@link BlurImage#blur(Bitmap, Bitmap, int)}。
+	 * <p>
+	 * target已有排队的请求时取代它，正在模糊的同target请求不再回调。
+	 * 模糊完成前不要修改bitmapIn，也不要显示bitmapOut。
+	 * @param target 请求的归属，用于合并和取消
+	 * @param callback 在主线程回调
+	 */
+	public synchronized void submit(Object target, Bitmap bitmapIn, Bitmap bitmapOut, int radius, Callback callback) {
+		if (target == null || callback == null) {
+			throw new NullPointerException("target and callback must not be null");
+		}
+		if (mShutdown) {
+			throw new IllegalStateException("BlurService has been shut down");
+		}
+
+		Request request = new Request();
+		request.target = target;
+		request.bitmapIn = bitmapIn;
+		request.bitmapOut = bitmapOut;
+		request.radius = radius;
+		request.callback = callback;
+		request.submitTime = SystemClock.uptimeMillis();
+		mSubmitted++;
+
+		Request undelivered = mUndelivered.remove(target);
+		if (undelivered != null) {
+			undelivered.cancelled = true;
+			mCoalesced++;
+		}
+
+		// 同一target保持原来的排队位置
+		Request old = mPending.put(target, request);
+		if (old != null) {
+			mCoalesced++;
+		} else if (mPending.size() > mCapacity) {
+			Iterator<Request> it = mPending.values().iterator();
+			it.next();
+			it.remove();
+			mDropped++;
+		}
+		mMaxQueueDepth = Math.max(mMaxQueueDepth, mPending.size());
+
+		if (mThread == null) {
+			mThread = new Thread(mWorker, TAG);
+			mThread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * 取消target的请求，包括正在模糊的请求
+	 * @return 是否有请求被取消
+	 */
+	public synchronized boolean cancel(Object target) {
+		boolean cancelled = false;
+		if (mPending.remove(target) != null) {
+			mCancelled++;
+			cancelled = true;
+		}
+		Request undelivered = mUndelivered.remove(target);
+		if (undelivered != null) {
+			undelivered.cancelled = true;
+			mCancelled++;
+			cancelled = true;
+		}
+		return cancelled;
+	}
+
+	/**
+	 * 取消所有请求
+	 */
+	public synchronized void cancelAll() {
+		mCancelled += mPending.size();
+		mPending.clear();
+		for (Request request : mUndelivered.values()) {
+			request.cancelled = true;
+		}
+		mCancelled += mUndelivered.size();
+		mUndelivered.clear();
+	}
+
+	/**
+	 * 取消所有请求并结束后台线程，之后不能再提交。自己创建的BlurImage在后台线程结束时释放
+	 */
+	public synchronized void shutdown() {
+		cancelAll();
+		mShutdown = true;
+		if (mThread == null && mOwnBlur) {
+			mBlur.release();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return 当前统计的快照
+	 */
+	public synchronized Stats getStats() {
+		Stats stats = new Stats();
+		stats.queueDepth = mPending.size();
+		stats.maxQueueDepth = mMaxQueueDepth;
+		stats.submitted = mSubmitted;
+		stats.completed = mCompleted;
+		stats.failed = mFailed;
+		stats.coalesced = mCoalesced;
+		stats.dropped = mDropped;
+		stats.cancelled = mCancelled;
+		long delivered = mCompleted + mFailed;
+		if (delivered > 0) {
+			stats.averageLatency = mLatencySum / delivered;
+			stats.averageBlurTime = mBlurTimeSum / delivered;
+		}
+		stats.maxLatency = mMaxLatency;
+		return stats;
+	}
+
+	/**
+	 * 清零累计的统计，不影响排队的请求
+	 */
+	public synchronized void resetStats() {
+		mMaxQueueDepth = mPending.size();
+		mSubmitted = 0;
+		mCompleted = 0;
+		mFailed = 0;
+		mCoalesced = 0;
+		mDropped = 0;
+		mCancelled = 0;
+		mLatencySum = 0;
+		mMaxLatency = 0;
+		mBlurTimeSum = 0;
+	}
+
+	private synchronized Request take() throws InterruptedException {
+		while (!mShutdown && mPending.isEmpty()) {
+			wait();
+		}
+		if (mShutdown) {
+			return null;
+		}
+		Iterator<Request> it = mPending.values().iterator();
+		Request request = it.next();
+		it.remove();
+		mUndelivered.put(request.target, request);
+		return request;
+	}
+
+	private final Runnable mWorker = new Runnable() {
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				Request request;
+				while ((request = take()) != null) {
+					long start = SystemClock.uptimeMillis();
+					RuntimeException error = null;
+					try {
+						mBlur.blur(request.bitmapIn, request.bitmapOut, request.radius);
+					} catch (Throwable e) {
+						// Error也只让这一个请求失败，线程继续处理后面的请求
+						Log.w(TAG, "blur failed", e);
+						error = e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+					}
+					deliver(request, SystemClock.uptimeMillis() - start, error);
+				}
+			} catch (InterruptedException e) {
+				// 结束线程
+			} finally {
+				// 没有shutdown时线程意外结束，BlurImage还要给下次submit启动的线程用
+				boolean release;
+				synchronized (BlurService.this) {
+					mThread = null;
+					release = mShutdown && mOwnBlur;
+				}
+				if (release) {
+					mBlur.release();
+				}
+			}
+		}
+	};
+
+	private void deliver(final Request request, final long blurTime, final RuntimeException error) {
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (BlurService.this) {
+					if (request.cancelled) {
+						return;
+					}
+					mUndelivered.remove(request.target);
+					long latency = SystemClock.uptimeMillis() - request.submitTime;
+					mLatencySum += latency;
+					mMaxLatency = Math.max(mMaxLatency, latency);
+					mBlurTimeSum += blurTime;
+					if (error == null) {
+						mCompleted++;
+					} else {
+						mFailed++;
+					}
+				}
+
+				if (error == null) {
+					request.callback.onBlurred(request.target, request.bitmapOut);
+				} else {
+					request.callback.onBlurFailed(request.target, error);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,258 @@
+package com.swordy.library.android.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.annotation.SuppressLint;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 可复用Bitmap的池，按宽、高和Config分桶
+ * <p>
+ * 不再使用的Bitmap通过{@link #put(Bitmap)}放回池中，{@link #decodeResource(Resources, int, Options)}
+ * 解码时通过Options.inBitmap复用同样尺寸的Bitmap，减少切换界面时的内存分配和GC。
+ * inBitmap从HONEYCOMB开始支持，更早的系统上放回的Bitmap直接回收。
+ * 超出容量时从最早放回的开始回收。
+ */
+public class BitmapPool
+{
+    private static final String TAG = "AndroidLibrary.BitmapPool";
+    
+    /**
+     * 默认池容量占最大堆内存的比例
+     */
+    public static final float DEFAULT_MAX_SIZE_FRACTION = 1 / 16f;
+    
+    private static BitmapPool mDefault;
+    
+    /**
+     * HashMap<宽、高和Config, 该尺寸的Bitmap>
+     */
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets = new HashMap<Long, ArrayList<Bitmap>>();
+    
+    /**
+     * 按放回的先后排列，超出容量时从头回收
+     */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+    
+    private long mMaxSize;
+    
+    private long mSize;
+    
+    private long mReuseCount;
+    
+    /**
+     * @return DrawableUtil和RegionButton共用的池
+     */
+    public static synchronized BitmapPool getDefault()
+    {
+        if (mDefault == null)
+        {
+            mDefault = new BitmapPool((long)(Runtime.getRuntime().maxMemory() * DEFAULT_MAX_SIZE_FRACTION));
+        }
+        return mDefault;
+    }
+    
+    /**
+     * @param maxSize 池中Bitmap的最大字节数
+     */
+    public BitmapPool(long maxSize)
+    {
+        mMaxSize = maxSize;
+    }
+    
+    /**
+     * @return 当前系统能否在解码时复用Bitmap
+     */
+    public static boolean isReuseSupported()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+    
+    private static long keyOf(int width, int height, Bitmap.Config config)
+    {
+        return ((long)width << 32) | ((long)height << 8) | (config == null ? 0xff : config.ordinal());
+    }
+    
+    private static int sizeOf(Bitmap bitmap)
+    {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+    
+    /**
+     * 放回不再使用的Bitmap，调用者之后不能再使用它。不能复用或放不下时直接回收
+     * @return 是否放入了池中
+     */
+    public synchronized boolean put(Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled())
+        {
+            return false;
+        }
+        
+        int size = sizeOf(bitmap);
+        if (!isReuseSupported() || !bitmap.isMutable() || size > mMaxSize)
+        {
+            bitmap.recycle();
+            return false;
+        }
+        
+        long key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null)
+        {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mSize += size;
+        trimToSize(mMaxSize);
+        return true;
+    }
+    
+    /**
+     * 取出一个尺寸和Config都相同的Bitmap，内容未定义
+     * @return 没有时返回null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+    {
+        long key = keyOf(width, height, config);
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null)
+        {
+            return null;
+        }
+        
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        if (bucket.isEmpty())
+        {
+            mBuckets.remove(key);
+        }
+        mOrder.remove(bitmap);
+        mSize -= sizeOf(bitmap);
+        return bitmap;
+    }
+    
+    /**
+     * 从最早放回的开始回收，直到总字节数不超过maxSize
+     */
+    public synchronized void trimToSize(long maxSize)
+    {
+        while (mSize > maxSize && !mOrder.isEmpty())
+        {
+            Bitmap bitmap = mOrder.removeFirst();
+            long key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayList<Bitmap> bucket = mBuckets.get(key);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty())
+            {
+                mBuckets.remove(key);
+            }
+            mSize -= sizeOf(bitmap);
+            bitmap.recycle();
+        }
+    }
+    
+    /**
+     * 回收池中所有Bitmap
+     */
+    public void clear()
+    {
+        trimToSize(0);
+    }
+    
+    public synchronized void setMaxSize(long maxSize)
+    {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+    
+    public synchronized long getMaxSize()
+    {
+        return mMaxSize;
+    }
+    
+    /**
+     * @return 池中Bitmap的字节数
+     */
+    public synchronized long getSize()
+    {
+        return mSize;
+    }
+    
+    /**
+     * @return 解码时复用了池中Bitmap的次数
+     */
+    public synchronized long getReuseCount()
+    {
+        return mReuseCount;
+    }
+    
+    /**
+     * 同BitmapFactory.decodeResource，但尽量复用池中的Bitmap，不改变opts。
+     * 支持复用的系统上解码出的Bitmap是可变的，用完后可以{@link #put(Bitmap)}放回
+     */
+    @SuppressLint("NewApi")
+    public Bitmap decodeResource(Resources res, int resId, Options opts)
+    {
+        if (!isReuseSupported())
+        {
+            return BitmapFactory.decodeResource(res, resId, opts);
+        }
+        
+        Options o = DrawableUtil.copyOptions(opts);
+        o.inMutable = true;
+        // 可清除的Bitmap不能复用
+        o.inPurgeable = false;
+        o.inInputShareable = false;
+        
+        // KITKAT以前只能复用不缩放的解码
+        Bitmap reuse = null;
+        if (getSize() > 0 && (o.inSampleSize <= 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT))
+        {
+            Options bounds = DrawableUtil.decodeBounds(res, resId, o);
+            if (bounds.outWidth > 0 && bounds.outHeight > 0)
+            {
+                Bitmap.Config config = o.inPreferredConfig != null ? o.inPreferredConfig : Bitmap.Config.ARGB_8888;
+                reuse = get(bounds.outWidth, bounds.outHeight, config);
+            }
+        }
+        
+        if (reuse != null)
+        {
+            o.inBitmap = reuse;
+            try
+            {
+                Bitmap bitmap = BitmapFactory.decodeResource(res, resId, o);
+                if (bitmap == reuse)
+                {
+                    synchronized (this)
+                    {
+                        mReuseCount++;
+                    }
+                    return bitmap;
+                }
+                put(reuse);
+                return bitmap;
+            }
+            catch (IllegalArgumentException e)
+            {
+                // 格式不支持复用，放回池中，不复用再解码一次
+                if (DrawableUtil.isVerboseLogging())
+                {
+                    Log.v(TAG, "can not reuse bitmap > res : " + resId);
+                }
+                put(reuse);
+                o.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeResource(res, resId, o);
+    }
+}
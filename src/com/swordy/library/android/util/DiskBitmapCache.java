@@ -0,0 +1,387 @@
+package com.swordy.library.android.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory.Options;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 已解码Bitmap的磁盘缓存，保存原始像素，不再需要PNG解压
+ * <p>
+ * 每个资源一个文件，以resId、inSampleSize、密度和Config区分。读取时映射文件，
+ * 像素只复制一次到Bitmap。文件头记录APK的版本，升级或重新安装后旧的文件作废。
+ * 超出容量时从最久没有读写的文件开始删除。
+ * 所有方法都可以在任意线程调用
+ * @see DrawableUtil#setDiskCache(DiskBitmapCache)
+ */
+public class DiskBitmapCache
+{
+    private static final String TAG = "AndroidLibrary.DiskBitmapCache";
+    
+    private static final String DIRECTORY = "DrawableUtil";
+    
+    private static final String SUFFIX = ".px";
+    
+    /**
+     * 文件格式改变时修改，旧格式的文件作废
+     */
+    private static final int MAGIC = 0x42504d32;
+    
+    /**
+     * magic, APK版本(long), 宽, 高, Config, 密度, 每行字节数, 是否有透明度
+     */
+    private static final int HEADER_SIZE = 4 + 8 + 4 * 6;
+    
+    private static final Bitmap.Config[] CONFIGS = Bitmap.Config.values();
+    
+    private final File mDirectory;
+    
+    private final long mVersion;
+    
+    private long mMaxSize;
+    
+    /**
+     * 目录中文件的总字节数，第一次用到时统计
+     */
+    private long mSize = -1;
+    
+    private long mHitCount;
+    
+    private long mMissCount;
+    
+    /**
+     * 在Context的缓存目录中打开
+     * @param maxSize 文件总字节数的上限
+     */
+    public static DiskBitmapCache open(Context context, long maxSize)
+    {
+        return new DiskBitmapCache(new File(context.getCacheDir(), DIRECTORY), getApkVersion(context), maxSize);
+    }
+    
+    /**
+     * @param version APK的版本，与文件中记录的不同时文件作废
+     * @param maxSize 文件总字节数的上限
+     */
+    public DiskBitmapCache(File directory, long version, long maxSize)
+    {
+        mDirectory = directory;
+        mVersion = version;
+        mMaxSize = maxSize;
+    }
+    
+    /**
+     * @return versionCode和APK文件的修改时间，重新安装同一版本时也不同
+     */
+    private static long getApkVersion(Context context)
+    {
+        int versionCode = 0;
+        try
+        {
+            versionCode = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        }
+        catch (NameNotFoundException e)
+        {
+            Log.w(TAG, "package not found : " + context.getPackageName());
+        }
+        long modified = new File(context.getPackageCodePath()).lastModified();
+        return ((long)versionCode << 32) ^ modified;
+    }
+    
+    private File fileOf(int resId, Options opts)
+    {
+        opts = DrawableUtil.copyOptions(opts);
+        int sampleSize = Math.max(1, opts.inSampleSize);
+        int config = opts.inPreferredConfig != null ? opts.inPreferredConfig.ordinal() : 0xff;
+        String name = Integer.toHexString(resId) + "_" + sampleSize + "_" + opts.inDensity + "_"
+            + opts.inTargetDensity + "_" + config + SUFFIX;
+        return new File(mDirectory, name);
+    }
+    
+    /**
+     * 读取按opts解码过的resId，尽量复用{@link BitmapPool}中的Bitmap
+     * @return 没有或已作废时返回null
+     */
+    public Bitmap get(int resId, Options opts)
+    {
+        File file = fileOf(resId, opts);
+        if (!file.exists())
+        {
+            miss();
+            return null;
+        }
+        
+        Bitmap bitmap = null;
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            bitmap = read(buffer);
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "read failed : " + file, e);
+        }
+        catch (OutOfMemoryError e)
+        {
+            Log.w(TAG, "read failed : " + file, e);
+        }
+        finally
+        {
+            close(raf);
+        }
+        
+        if (bitmap == null)
+        {
+            remove(file);
+            miss();
+            return null;
+        }
+        
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this)
+        {
+            mHitCount++;
+        }
+        return bitmap;
+    }
+    
+    /**
+     * @return 文件头不符或长度不对时返回null
+     */
+    @SuppressLint("NewApi")
+    private Bitmap read(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getLong() != mVersion)
+        {
+            return null;
+        }
+        
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int config = buffer.getInt();
+        int density = buffer.getInt();
+        int rowBytes = buffer.getInt();
+        int hasAlpha = buffer.getInt();
+        if (width <= 0 || height <= 0 || config < 0 || config >= CONFIGS.length
+            || buffer.remaining() != (long)rowBytes * height)
+        {
+            return null;
+        }
+        
+        Bitmap bitmap = BitmapPool.getDefault().get(width, height, CONFIGS[config]);
+        if (bitmap == null)
+        {
+            bitmap = Bitmap.createBitmap(width, height, CONFIGS[config]);
+        }
+        if (bitmap.getRowBytes() != rowBytes)
+        {
+            BitmapPool.getDefault().put(bitmap);
+            return null;
+        }
+        
+        bitmap.copyPixelsFromBuffer(buffer);
+        bitmap.setDensity(density);
+        // 复用的Bitmap保留上一个使用者的标记，不透明的图按有透明度绘制会变慢
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1)
+        {
+            bitmap.setHasAlpha(hasAlpha != 0);
+        }
+        return bitmap;
+    }
+    
+    /**
+     * 保存按opts解码的resId，先写临时文件再改名，读取时不会看到写了一半的文件
+     */
+    public void put(int resId, Options opts, Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getConfig() == null)
+        {
+            return;
+        }
+        
+        long length = HEADER_SIZE + (long)bitmap.getRowBytes() * bitmap.getHeight();
+        if (length > mMaxSize || !mDirectory.isDirectory() && !mDirectory.mkdirs())
+        {
+            return;
+        }
+        
+        File file = fileOf(resId, opts);
+        File tmp = new File(mDirectory, file.getName() + ".tmp");
+        RandomAccessFile raf = null;
+        boolean written = false;
+        try
+        {
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(length);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(MAGIC);
+            buffer.putLong(mVersion);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(bitmap.getConfig().ordinal());
+            buffer.putInt(bitmap.getDensity());
+            buffer.putInt(bitmap.getRowBytes());
+            buffer.putInt(bitmap.hasAlpha() ? 1 : 0);
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.force();
+            written = true;
+        }
+        catch (IOException e)
+        {
+            Log.w(TAG, "write failed : " + file, e);
+        }
+        finally
+        {
+            close(raf);
+        }
+        
+        synchronized (this)
+        {
+            long old = file.length();
+            if (!written || !tmp.renameTo(file))
+            {
+                tmp.delete();
+                return;
+            }
+            if (mSize >= 0)
+            {
+                mSize += length - old;
+            }
+            trimToSize(mMaxSize);
+        }
+    }
+    
+    private synchronized void miss()
+    {
+        mMissCount++;
+    }
+    
+    private synchronized void remove(File file)
+    {
+        long length = file.length();
+        if (file.delete() && mSize >= 0)
+        {
+            mSize -= length;
+        }
+    }
+    
+    private static void close(RandomAccessFile raf)
+    {
+        if (raf != null)
+        {
+            try
+            {
+                raf.close();
+            }
+            catch (IOException e)
+            {
+                // 只读或已写完，忽略
+            }
+        }
+    }
+    
+    private File[] listFiles()
+    {
+        File[] files = mDirectory.listFiles();
+        return files != null ? files : new File[0];
+    }
+    
+    /**
+     * 从最久没有读写的文件开始删除，直到总字节数不超过maxSize
+     */
+    public synchronized void trimToSize(long maxSize)
+    {
+        File[] files = listFiles();
+        if (mSize < 0)
+        {
+            mSize = 0;
+            for (File file : files)
+            {
+                mSize += file.length();
+            }
+        }
+        if (mSize <= maxSize)
+        {
+            return;
+        }
+        
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i != files.length && mSize > maxSize; i++)
+        {
+            long length = files[i].length();
+            if (files[i].delete())
+            {
+                mSize -= length;
+            }
+        }
+    }
+    
+    public synchronized void setMaxSize(long maxSize)
+    {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+    
+    public synchronized long getMaxSize()
+    {
+        return mMaxSize;
+    }
+    
+    /**
+     * @return 目录中文件的总字节数
+     */
+    public synchronized long getSize()
+    {
+        if (mSize < 0)
+        {
+            // 统计目录
+            trimToSize(mMaxSize);
+        }
+        return mSize;
+    }
+    
+    public synchronized long getHitCount()
+    {
+        return mHitCount;
+    }
+    
+    public synchronized long getMissCount()
+    {
+        return mMissCount;
+    }
+    
+    /**
+     * 删除所有文件
+     */
+    public synchronized void clear()
+    {
+        for (File file : listFiles())
+        {
+            file.delete();
+        }
+        mSize = 0;
+    }
+}
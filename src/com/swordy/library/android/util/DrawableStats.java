@@ -0,0 +1,162 @@
+package com.swordy.library.android.util;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * DrawableUtil缓存在某一时刻的统计，由{@link DrawableUtil#getStats(int)}取得，之后不再变化
+ * <p>
+ * {@link #dump(PrintWriter)}输出可读的文本，可以放在Activity.dump或错误报告中。
+ */
+public class DrawableStats
+{
+    /**
+     * 解码耗时分布的上界，单位毫秒。最后一格统计不小于最后一个上界的解码
+     */
+    public static final int[] DECODE_TIME_BOUNDS = {4, 8, 16, 32, 64, 128};
+    
+    /**
+     * 一个已解码的Bitmap
+     */
+    public static class BitmapInfo
+    {
+        public final int resId;
+        
+        public final int sampleSize;
+        
+        public final int width;
+        
+        public final int height;
+        
+        public final int bytes;
+        
+        /** 所有Context的引用数之和，0表示只留在缓存中 */
+        public final int refs;
+        
+        BitmapInfo(int resId, int sampleSize, int width, int height, int bytes, int refs)
+        {
+            this.resId = resId;
+            this.sampleSize = sampleSize;
+            this.width = width;
+            this.height = height;
+            this.bytes = bytes;
+            this.refs = refs;
+        }
+    }
+    
+    public long hitCount;
+    
+    public long missCount;
+    
+    public long decodeCount;
+    
+    public long decodeFailureCount;
+    
+    /**
+     * 各格解码的次数，长度为DECODE_TIME_BOUNDS.length + 1
+     */
+    public long[] decodeTimeHistogram;
+    
+    public long decodeTimeMillis;
+    
+    public long evictionCount;
+    
+    public long trimmedBytes;
+    
+    public long memorySize;
+    
+    public long memoryBudget;
+    
+    public int bitmapCount;
+    
+    public long poolSize;
+    
+    public long poolReuseCount;
+    
+    /**
+     * HashMap<Context id, 该Context引用的Bitmap的字节数>，共享的Bitmap在每个Context中都计入
+     */
+    public Map<Integer, Long> contextBytes = new HashMap<Integer, Long>();
+    
+    /**
+     * 按字节数从大到小
+     */
+    public List<BitmapInfo> largest = new ArrayList<BitmapInfo>();
+    
+    DrawableStats()
+    {
+    }
+    
+    /**
+     * @return 命中已解码Bitmap的比例，没有请求时为0
+     */
+    public float getHitRate()
+    {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (float)hitCount / total;
+    }
+    
+    /**
+     * @return 平均解码耗时，单位毫秒
+     */
+    public float getAverageDecodeMillis()
+    {
+        return decodeCount == 0 ? 0 : (float)decodeTimeMillis / decodeCount;
+    }
+    
+    public void dump(PrintWriter pw)
+    {
+        pw.println("DrawableUtil:");
+        pw.println("  memory: " + memorySize + " / " + memoryBudget + " bytes, " + bitmapCount + " bitmaps");
+        pw.println("  pool: " + poolSize + " bytes, reused " + poolReuseCount);
+        pw.println("  requests: hit " + hitCount + ", miss " + missCount + ", hit rate "
+            + Math.round(getHitRate() * 100) + "%");
+        pw.println("  decodes: " + decodeCount + ", failed " + decodeFailureCount + ", average "
+            + getAverageDecodeMillis() + " ms");
+        
+        StringBuilder sb = new StringBuilder("  decode time:");
+        for (int i = 0; i != decodeTimeHistogram.length; i++)
+        {
+            sb.append(i < DECODE_TIME_BOUNDS.length ? " <" + DECODE_TIME_BOUNDS[i] : " >=" + DECODE_TIME_BOUNDS[i - 1]);
+            sb.append("ms:").append(decodeTimeHistogram[i]);
+        }
+        pw.println(sb.toString());
+        pw.println("  evicted: " + evictionCount + ", trimmed " + trimmedBytes + " bytes");
+        
+        pw.println("  contexts: " + contextBytes.size());
+        List<Entry<Integer, Long>> contexts = new ArrayList<Entry<Integer, Long>>(contextBytes.entrySet());
+        Collections.sort(contexts, new Comparator<Entry<Integer, Long>>()
+        {
+            @Override
+            public int compare(Entry<Integer, Long> lhs, Entry<Integer, Long> rhs)
+            {
+                return rhs.getValue().compareTo(lhs.getValue());
+            }
+        });
+        for (Entry<Integer, Long> entry : contexts)
+        {
+            pw.println("    " + Integer.toHexString(entry.getKey()) + ": " + entry.getValue() + " bytes");
+        }
+        
+        pw.println("  largest: " + largest.size());
+        for (BitmapInfo info : largest)
+        {
+            pw.println("    0x" + Integer.toHexString(info.resId) + " /" + info.sampleSize + " " + info.width + "x"
+                + info.height + ": " + info.bytes + " bytes, refs " + info.refs);
+        }
+        pw.flush();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "DrawableStats[ hit rate: " + getHitRate() + ", decodes: " + decodeCount + ", memory: " + memorySize
+            + ", bitmaps: " + bitmapCount + " ]";
+    }
+}
@@ -1,10 +1,21 @@
 package com.swordy.library.android.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -14,22 +25,155 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LevelListDrawable;
 import android.graphics.drawable.StateListDrawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 
+/**
+ * 解码并缓存图片资源，同一资源只解码一次，所有Context共享。
+ * <p>
+ * 所有方法都可以在任意线程调用，缓存由DrawableUtil.class的锁保护，解码在锁外进行。
+ * getDrawableAsync在后台线程解码，先返回占位图，解码完成后在主线程换上。
+ * <p>
+ * ICE_CREAM_SANDWICH以上第一次取图片时注册ComponentCallbacks2，内存紧张时按级别逐步释放，
+ * 更早的系统上由Application的onLowMemory调用{@link #trimMemory(int)}。
+ * <p>
+ * 通过release或recycle释放引用后，不能再绘制得到的Drawable。没有引用的Bitmap超出预算时放回{@link BitmapPool}，
+ * 之后解码的其他图片会写入它的像素，过早释放不会抛出"recycled bitmap"异常，而是显示成别的图片。
+ * 应在View不再显示Drawable之后才释放。
+ */
 public class DrawableUtil
 {
     public static final String TAG = "AndroidLibrary.DrawableUtil";
     
     /**
-     * HashMap<Context id instead of hashCode, HashMap<image resource id, decoded bitmap>>
+     * HashMap<image resource id and inSampleSize, decoded bitmap>
+     * @see #keyOf(int, int)
      */
-    private static HashMap<Integer, HashMap<Integer, Bitmap>> mBitmapTracker =
-        new HashMap<Integer, HashMap<Integer, Bitmap>>();
+    private static HashMap<Long, BitmapEntry> mBitmaps = new HashMap<Long, BitmapEntry>();
+    
+    /**
+     * HashMap<Context id instead of hashCode, HashMap<mBitmaps的key, 该Context的引用数>>
+     */
+    private static HashMap<Integer, HashMap<Long, Integer>> mBitmapTracker =
+        new HashMap<Integer, HashMap<Long, Integer>>();
+    
+    /**
+     * 没有引用的Bitmap，按释放的先后排列，超出预算时从最早释放的开始回收
+     */
+    private static LinkedHashMap<Long, BitmapEntry> mUnheld = new LinkedHashMap<Long, BitmapEntry>();
+    
+    /**
+     * HashMap<image resource id, 不缩小时解码的宽高>，按目标尺寸解码时用来计算inSampleSize
+     */
+    private static HashMap<Integer, Long> mSourceSizes = new HashMap<Integer, Long>();
     
     private static Options mOpts;
     
+    /**
+     * 默认预算占最大堆内存的比例
+     */
+    public static final float DEFAULT_MEMORY_BUDGET_FRACTION = 1 / 8f;
+    
+    private static long mMemoryBudget = (long)(Runtime.getRuntime().maxMemory() * DEFAULT_MEMORY_BUDGET_FRACTION);
+    
+    /**
+     * 所有已解码Bitmap的字节数，包括还有引用的
+     */
+    private static long mMemorySize;
+    
+    private static long mHitCount;
+    
+    private static long mMissCount;
+    
+    private static long mEvictionCount;
+    
+    private static long mDecodeCount;
+    
+    private static long mDecodeFailureCount;
+    
+    private static long mDecodeTimeMillis;
+    
+    /**
+     * 解码耗时的分布
+     * @see DrawableStats#DECODE_TIME_BOUNDS
+     */
+    private static long[] mDecodeTimeHistogram = new long[DrawableStats.DECODE_TIME_BOUNDS.length + 1];
+    
+    /**
+     * 每次取图片时的Log.v，默认关闭，避免热路径上拼接字符串
+     */
+    private static volatile boolean mVerbose;
+    
+    /**
+     * 正在解码的资源，同一resId和inSampleSize的并发请求共享一次解码
+     */
+    private static HashMap<Long, DecodeTask> mDecoding = new HashMap<Long, DecodeTask>();
+    
+    private static final int DECODE_THREAD_COUNT = 2;
+    
+    private static ExecutorService mDecodeExecutor;
+    
+    private static final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    
+    private static DiskBitmapCache mDiskCache;
+    
+    private static boolean mCallbacksRegistered;
+    
+    /**
+     * 内存紧张时累计释放的字节数
+     */
+    private static long mTrimmedBytes;
+    
+    /**
+     * 解码过的Bitmap，refs为所有Context对它的引用数之和。
+     * 减到0时不立即回收，留在mUnheld中以备再次使用，直到超出预算
+     */
+    private static class BitmapEntry
+    {
+        final long key;
+        
+        final int resId;
+        
+        Bitmap bitmap;
+        
+        int bytes;
+        
+        int refs;
+        
+        /** 正在后台写入磁盘缓存的Bitmap，写完前不能放回复用池或回收 */
+        Bitmap saving;
+        
+        /** 写入期间已被移出缓存，写完后再放回复用池 */
+        boolean evicted;
+        
+        BitmapEntry(long key, int resId, Bitmap bitmap)
+        {
+            this.key = key;
+            this.resId = resId;
+            this.bitmap = bitmap;
+            this.bytes = sizeOf(bitmap);
+        }
+    }
+    
+    private static int sizeOf(Bitmap bitmap)
+    {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+    
+    /**
+     * 同一资源按不同inSampleSize解码的Bitmap分别缓存
+     */
+    private static long keyOf(int resId, int sampleSize)
+    {
+        return ((long)sampleSize << 32) | (resId & 0xffffffffL);
+    }
+    
     public static synchronized Options getOptimizeOptions(Resources res)
     {
         if (mOpts != null)
@@ -47,91 +191,459 @@ public class DrawableUtil
     }
     
     /**
-     * 释放已记录的所有Bitmap
+     * 释放已记录的所有Bitmap，之后不能再绘制该Context得到的Drawable
      * @param trackerId 用于记录使用DrawableUtil.getDrawable
-     * @see DrawableUtil.{@link #addDrawableTracker(int)}.
+     * @see DrawableUtil.{@link #release(Context, int)}.
      * @see DrawableUtil.{@link #recycleAll()}.
      */
-    public static void recycle(Context context)
+    public static synchronized void recycle(Context context)
     {
         recycle(context.hashCode());
     }
     
     private static void recycle(int contextId)
     {
-        Log.v(TAG, "recycle context : " + contextId);
-        HashMap<Integer, Bitmap> tracker = mBitmapTracker.get(contextId);
+        if (mVerbose)
+        {
+            Log.v(TAG, "recycle context : " + contextId);
+        }
+        HashMap<Long, Integer> tracker = mBitmapTracker.remove(contextId);
         if (tracker == null)
         {
             return;
         }
         
-        Set<Entry<Integer, Bitmap>> entries = tracker.entrySet();
-        for (Entry<Integer, Bitmap> entry : entries)
+        for (Entry<Long, Integer> entry : tracker.entrySet())
         {
-            int resId = entry.getKey();
-            if (containInOtherContext(contextId, resId))
+            releaseReferences(entry.getKey(), entry.getValue());
+        }
+        if (mVerbose)
+        {
+            Log.v(TAG, "mBitmapTracker size: " + mBitmapTracker.size());
+        }
+        
+        if (mBitmapTracker.size() == 0)
+        {
+            mOpts = null;
+        }
+    }
+    
+    /**
+     * 释放Context通过getDrawable获得的一次resId引用，没有引用的Bitmap超出内存预算时回收。
+     * 释放后Bitmap可能被复用，不能再绘制得到的Drawable
+     * @see DrawableUtil.{@link #recycle(Context)}.
+     */
+    public static void release(Context context, int resId)
+    {
+        release(context.hashCode(), keyOf(resId, 1));
+    }
+    
+    /**
+     * 释放Context通过{@link #getDrawable(Context, int, Options)}获得的一次引用，opts与获得时相同
+     */
+    public static void release(Context context, int resId, Options opts)
+    {
+        release(context.hashCode(), keyOf(resId, opts != null ? Math.max(1, opts.inSampleSize) : 1));
+    }
+    
+    /**
+     * 释放Context通过getSampledDrawable获得的一次引用，参数与获得时相同
+     * @see DrawableUtil.{@link #getSampledDrawable(Context, int, int, int)}.
+     */
+    public static void release(Context context, int resId, int reqWidth, int reqHeight)
+    {
+        Resources res = context.getResources();
+        int sampleSize = getSampleSize(res, resId, getOptimizeOptions(res), reqWidth, reqHeight);
+        release(context.hashCode(), keyOf(resId, sampleSize));
+    }
+    
+    private static synchronized void release(int contextId, long key)
+    {
+        HashMap<Long, Integer> tracker = mBitmapTracker.get(contextId);
+        if (tracker == null)
+        {
+            return;
+        }
+        
+        Integer count = tracker.get(key);
+        if (count == null)
+        {
+            return;
+        }
+        
+        if (count == 1)
+        {
+            tracker.remove(key);
+            if (tracker.isEmpty())
             {
-                Log.v(TAG, "containInOtherContext : " + resId);
-                continue;
+                mBitmapTracker.remove(contextId);
             }
+        }
+        else
+        {
+            tracker.put(key, count - 1);
+        }
+        releaseReferences(key, 1);
+    }
+    
+    /**
+     * 减少key的引用数，减到0时放入mUnheld，超出预算时回收
+     */
+    private static void releaseReferences(long key, int count)
+    {
+        BitmapEntry entry = mBitmaps.get(key);
+        if (entry == null)
+        {
+            return;
+        }
+        
+        entry.refs -= count;
+        if (entry.refs > 0)
+        {
+            return;
+        }
+        
+        entry.refs = 0;
+        mUnheld.put(key, entry);
+        trimToSize(mMemoryBudget);
+    }
+    
+    /**
+     * 从最早释放的开始回收没有引用的Bitmap，直到总字节数不超过maxSize。
+     * 还有引用的Bitmap可能正在显示，不会回收
+     */
+    private static void trimToSize(long maxSize)
+    {
+        Iterator<BitmapEntry> it = mUnheld.values().iterator();
+        while (mMemorySize > maxSize && it.hasNext())
+        {
+            BitmapEntry entry = it.next();
+            it.remove();
+            mBitmaps.remove(entry.key);
+            mMemorySize -= entry.bytes;
+            mEvictionCount++;
             
-            Bitmap bmp = entry.getValue();
-            if (bmp != null && !bmp.isRecycled())
+            // 放回复用池，不能复用时回收
+            if (mVerbose)
+            {
+                Log.v(TAG, "recyle bitmap > res: " + entry.resId);
+            }
+            if (entry.bitmap == entry.saving)
+            {
+                entry.evicted = true;
+            }
+            else
+            {
+                BitmapPool.getDefault().put(entry.bitmap);
+            }
+        }
+    }
+    
+    /**
+     * 设置已解码Bitmap的内存预算，默认为最大堆内存的{@link #DEFAULT_MEMORY_BUDGET_FRACTION}。
+     * 超出预算时回收没有引用的Bitmap，还有引用的不受预算限制。
+     * 回收的Bitmap放回{@link BitmapPool}给之后的解码复用，预算越小，释放后还在绘制的Drawable越快显示错误的内容
+     * @param bytes 预算字节数，0表示引用数减到0时立即回收
+     */
+    public static synchronized void setMemoryBudget(long bytes)
+    {
+        if (bytes < 0)
+        {
+            throw new IllegalArgumentException("budget must not be negative: " + bytes);
+        }
+        mMemoryBudget = bytes;
+        trimToSize(bytes);
+    }
+    
+    /**
+     * @param fraction 预算占{@link Runtime#maxMemory()}的比例，0到1
+     * @see DrawableUtil.{@link #setMemoryBudget(long)}.
+     */
+    public static void setMemoryBudgetFraction(float fraction)
+    {
+        if (fraction < 0 || fraction > 1)
+        {
+            throw new IllegalArgumentException("fraction must be in [0, 1]: " + fraction);
+        }
+        setMemoryBudget((long)(Runtime.getRuntime().maxMemory() * fraction));
+    }
+    
+    public static synchronized long getMemoryBudget()
+    {
+        return mMemoryBudget;
+    }
+    
+    /**
+     * @return 所有已解码Bitmap的字节数，包括还有引用的
+     */
+    public static synchronized long getMemorySize()
+    {
+        return mMemorySize;
+    }
+    
+    /**
+     * @return getDrawable命中已解码Bitmap的次数
+     */
+    public static synchronized long getHitCount()
+    {
+        return mHitCount;
+    }
+    
+    /**
+     * @return getDrawable需要解码的次数
+     */
+    public static synchronized long getMissCount()
+    {
+        return mMissCount;
+    }
+    
+    /**
+     * @return 因超出预算被回收的Bitmap数
+     */
+    public static synchronized long getEvictionCount()
+    {
+        return mEvictionCount;
+    }
+    
+    /**
+     * 打开或关闭每次取图片、释放时的Log.v，默认关闭
+     */
+    public static void setVerboseLogging(boolean verbose)
+    {
+        mVerbose = verbose;
+    }
+    
+    public static boolean isVerboseLogging()
+    {
+        return mVerbose;
+    }
+    
+    /**
+     * 当前缓存的统计
+     * @param topN 列出字节数最大的topN个Bitmap
+     */
+    public static synchronized DrawableStats getStats(int topN)
+    {
+        DrawableStats stats = new DrawableStats();
+        stats.hitCount = mHitCount;
+        stats.missCount = mMissCount;
+        stats.decodeCount = mDecodeCount;
+        stats.decodeFailureCount = mDecodeFailureCount;
+        stats.decodeTimeMillis = mDecodeTimeMillis;
+        stats.decodeTimeHistogram = mDecodeTimeHistogram.clone();
+        stats.evictionCount = mEvictionCount;
+        stats.trimmedBytes = mTrimmedBytes;
+        stats.memorySize = mMemorySize;
+        stats.memoryBudget = mMemoryBudget;
+        stats.bitmapCount = mBitmaps.size();
+        BitmapPool pool = BitmapPool.getDefault();
+        stats.poolSize = pool.getSize();
+        stats.poolReuseCount = pool.getReuseCount();
+        
+        for (Entry<Integer, HashMap<Long, Integer>> tracker : mBitmapTracker.entrySet())
+        {
+            long bytes = 0;
+            for (long key : tracker.getValue().keySet())
             {
-                Log.v(TAG, "recyle bitmap > context : " + contextId + " res: " + entry.getKey());
-                bmp.recycle();
+                BitmapEntry entry = mBitmaps.get(key);
+                if (entry != null)
+                {
+                    bytes += entry.bytes;
+                }
             }
+            stats.contextBytes.put(tracker.getKey(), bytes);
         }
-        tracker.clear();
         
-        mBitmapTracker.remove(contextId);
-        Log.v(TAG, "mBitmapTracker size: " + mBitmapTracker.size());
+        ArrayList<BitmapEntry> entries = new ArrayList<BitmapEntry>(mBitmaps.values());
+        Collections.sort(entries, new Comparator<BitmapEntry>()
+        {
+            @Override
+            public int compare(BitmapEntry lhs, BitmapEntry rhs)
+            {
+                return rhs.bytes - lhs.bytes;
+            }
+        });
+        for (int i = 0; i < topN && i < entries.size(); i++)
+        {
+            BitmapEntry entry = entries.get(i);
+            stats.largest.add(new DrawableStats.BitmapInfo(entry.resId, (int)(entry.key >>> 32),
+                entry.bitmap.getWidth(), entry.bitmap.getHeight(), entry.bytes, entry.refs));
+        }
+        return stats;
+    }
+    
+    /**
+     * 清零命中、解码和回收的计数
+     */
+    public static synchronized void resetStats()
+    {
+        mHitCount = 0;
+        mMissCount = 0;
+        mEvictionCount = 0;
+        mDecodeCount = 0;
+        mDecodeFailureCount = 0;
+        mDecodeTimeMillis = 0;
+        mTrimmedBytes = 0;
+        Arrays.fill(mDecodeTimeHistogram, 0);
+    }
+    
+    /**
+     * 记录一次解码的耗时，在锁内调用
+     */
+    private static void recordDecode(long millis, boolean succeeded)
+    {
+        mDecodeCount++;
+        if (!succeeded)
+        {
+            mDecodeFailureCount++;
+        }
+        mDecodeTimeMillis += millis;
         
-        if (mBitmapTracker.size() == 0)
+        int[] bounds = DrawableStats.DECODE_TIME_BOUNDS;
+        int i = 0;
+        while (i < bounds.length && millis >= bounds[i])
         {
-            mOpts = null;
+            i++;
         }
+        mDecodeTimeHistogram[i]++;
     }
     
     /**
-     * 释放所有记录的Bitmap
-     * @see DrawableUtil.{@link #addDrawableTracker(int)}.
-     * @see DrawableUtil.{@link #recycle(int)}.
+     * 按内存紧张的级别逐步释放，级别越高释放越多：
+     * <ul>
+     * <li>RUNNING_MODERATE以上：没有引用的Bitmap和复用池减到预算的一半</li>
+     * <li>RUNNING_CRITICAL、UI_HIDDEN以上：回收所有没有引用的Bitmap，清空复用池</li>
+     * <li>BACKGROUND以上：再释放所有不显示的状态图片，见{@link #releaseIdleStateDrawables(long)}</li>
+     * </ul>
+     * 还有引用的Bitmap可能正在显示，不会回收。只在主线程调用
+     * @param level ComponentCallbacks2.TRIM_MEMORY_*
+     * @return 释放的字节数，包括复用池中的
      */
-    public static void recycleAll()
+    @SuppressLint("InlinedApi")
+    public static long trimMemory(int level)
     {
-        Set<Integer> keys = mBitmapTracker.keySet();
-        for (Integer trackerId : keys)
+        BitmapPool pool = BitmapPool.getDefault();
+        long before;
+        synchronized (DrawableUtil.class)
+        {
+            before = mMemorySize + pool.getSize();
+        }
+        
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
         {
-            recycle(trackerId);
+            // 先放入mUnheld，下面一起回收
+            LazyResourceDrawable.releaseIdle(0);
         }
+        
+        long reclaimed;
+        synchronized (DrawableUtil.class)
+        {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            {
+                trimToSize(0);
+                pool.clear();
+            }
+            else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+            {
+                trimToSize(mMemoryBudget / 2);
+                pool.trimToSize(pool.getMaxSize() / 2);
+            }
+            reclaimed = before - mMemorySize - pool.getSize();
+            mTrimmedBytes += reclaimed;
+        }
+        Log.i(TAG, "trim memory > level : " + level + ", reclaimed : " + reclaimed);
+        return reclaimed;
     }
     
     /**
-     * 判断资源是否在其它地方还在使用，如果是，则不进行释放
-     * @param contextId 当前需要释放该资源的Context id
-     * @param resId 需要释放的resource id
-     * @return true 表示该资源仍在其他地方使用中
+     * @return {@link #trimMemory(int)}累计释放的字节数
      */
-    private static boolean containInOtherContext(int contextId, int resId)
+    public static synchronized long getTrimmedBytes()
     {
-        // TODO 该轮询费劲
-        Set<Entry<Integer, HashMap<Integer, Bitmap>>> entries = mBitmapTracker.entrySet();
-        for (Entry<Integer, HashMap<Integer, Bitmap>> entry : entries)
+        return mTrimmedBytes;
+    }
+    
+    /**
+     * 注册一次ComponentCallbacks2，系统通知内存紧张时调用{@link #trimMemory(int)}
+     */
+    @SuppressLint("NewApi")
+    private static void registerMemoryCallbacks(Context context)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
         {
-            if (contextId == entry.getKey())
+            return;
+        }
+        
+        synchronized (DrawableUtil.class)
+        {
+            if (mCallbacksRegistered)
             {
-                continue;
+                return;
+            }
+            mCallbacksRegistered = true;
+        }
+        
+        Context app = context.getApplicationContext();
+        (app != null ? app : context).registerComponentCallbacks(new ComponentCallbacks2()
+        {
+            @Override
+            public void onTrimMemory(int level)
+            {
+                trimMemory(level);
             }
             
-            HashMap<Integer, Bitmap> value = entry.getValue();
-            if (value.containsKey(resId))
+            @Override
+            public void onLowMemory()
             {
-                return true;
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+            
+            @Override
+            public void onConfigurationChanged(Configuration newConfig)
+            {
+            }
+        });
+    }
+    
+    /**
+     * 设置磁盘缓存，解码前先从中读取，解码后在后台线程写入，下次启动时不需要再解码PNG。
+     * 从磁盘读取的Bitmap不是可清除的(inPurgeable)
+     * @param cache 为null时不使用磁盘缓存，默认不使用
+     * @see DiskBitmapCache#open(Context, long)
+     */
+    public static synchronized void setDiskCache(DiskBitmapCache cache)
+    {
+        mDiskCache = cache;
+    }
+    
+    public static synchronized DiskBitmapCache getDiskCache()
+    {
+        return mDiskCache;
+    }
+    
+    /**
+     * 释放所有记录的Bitmap
+     * @see DrawableUtil.{@link #recycle(Context)}.
+     */
+    public static synchronized void recycleAll()
+    {
+        for (BitmapEntry entry : mBitmaps.values())
+        {
+            if (entry.bitmap == entry.saving)
+            {
+                entry.evicted = true;
+            }
+            else if (!entry.bitmap.isRecycled())
+            {
+                entry.bitmap.recycle();
             }
         }
-        return false;
+        mBitmaps.clear();
+        mUnheld.clear();
+        mBitmapTracker.clear();
+        mMemorySize = 0;
+        mOpts = null;
+        BitmapPool.getDefault().clear();
     }
     
     public static Drawable getDrawable(Context context, int resId)
@@ -139,68 +651,589 @@ public class DrawableUtil
         return getDrawable(context, resId, getOptimizeOptions(context.getResources()));
     }
     
+    /**
+     * 同一resId只解码一次，所有Context共享，每次调用增加一次引用。
+     * 其它线程正在解码同一资源时等待它的结果，否则在当前线程解码。
+     * opts.inSampleSize不同的解码分别缓存
+     */
     public static Drawable getDrawable(Context context, int resId, Options opts)
+    {
+        return getDrawable(context, resId, opts, opts != null ? Math.max(1, opts.inSampleSize) : 1);
+    }
+    
+    /**
+     * 按目标尺寸缩小解码，宽高都不小于目标尺寸，适合缩略图。
+     * 同一资源不同的缩小倍数分别缓存，释放时使用{@link #release(Context, int, int, int)}
+     * @param reqWidth 目标宽度，小于等于0时不限制
+     * @param reqHeight 目标高度，小于等于0时不限制
+     */
+    public static Drawable getSampledDrawable(Context context, int resId, int reqWidth, int reqHeight)
+    {
+        return getSampledDrawable(context, resId, reqWidth, reqHeight, getOptimizeOptions(context.getResources()));
+    }
+    
+    /**
+     * @see DrawableUtil.{@link #getSampledDrawable(Context, int, int, int)}.
+     */
+    public static Drawable getSampledDrawable(Context context, int resId, int reqWidth, int reqHeight, Options opts)
+    {
+        if (resId == View.NO_ID)
+        {
+            return null;
+        }
+        return getDrawable(context, resId, opts, getSampleSize(context.getResources(), resId, opts, reqWidth, reqHeight));
+    }
+    
+    private static Drawable getDrawable(Context context, int resId, Options opts, int sampleSize)
     {
         if (resId == View.NO_ID)
         {
             return null;
         }
         
-        Bitmap bitmap = null;
+        registerMemoryCallbacks(context);
         Resources res = context.getResources();
+        int contextId = context.hashCode();
+        long key = keyOf(resId, sampleSize);
+        DecodeTask task;
+        synchronized (DrawableUtil.class)
+        {
+            Bitmap bitmap = acquire(contextId, key);
+            if (bitmap != null)
+            {
+                return new BitmapDrawable(res, bitmap);
+            }
+            
+            task = requestDecode(key, resId, res, withSampleSize(opts, sampleSize));
+            task.contextIds.add(contextId);
+        }
+        
+        // 还在排队的后台解码也由当前线程完成，不等待队列
+        task.run();
+        return new BitmapDrawable(res, task.await());
+    }
+    
+    public static Drawable getDrawableAsync(Context context, int resId, Drawable placeholder)
+    {
+        return getDrawableAsync(context, resId, placeholder, getOptimizeOptions(context.getResources()));
+    }
+    
+    /**
+     * 在后台线程解码，引用计数同{@link #getDrawable(Context, int, Options)}。
+     * <p>
+     * 资源已解码时直接返回BitmapDrawable，否则返回{@link LazyBitmapDrawable}，
+     * 先显示placeholder，解码完成后在主线程换上Bitmap。它的固有尺寸由只解码边界得到，
+     * 换上Bitmap时不需要重新布局。
+     * @param placeholder 解码完成前显示，可以为null
+     */
+    public static Drawable getDrawableAsync(Context context, int resId, Drawable placeholder, Options opts)
+    {
+        return getDrawableAsync(context, resId, placeholder, opts, opts != null ? Math.max(1, opts.inSampleSize) : 1);
+    }
+    
+    /**
+     * 按目标尺寸缩小，在后台线程解码
+     * @see DrawableUtil.{@link #getSampledDrawable(Context, int, int, int)}.
+     * @see DrawableUtil.{@link #getDrawableAsync(Context, int, Drawable, Options)}.
+     */
+    public static Drawable getSampledDrawableAsync(Context context, int resId, int reqWidth, int reqHeight,
+        Drawable placeholder)
+    {
+        if (resId == View.NO_ID)
+        {
+            return null;
+        }
+        Resources res = context.getResources();
+        Options opts = getOptimizeOptions(res);
+        return getDrawableAsync(context, resId, placeholder, opts, getSampleSize(res, resId, opts, reqWidth, reqHeight));
+    }
+    
+    private static Drawable getDrawableAsync(Context context, int resId, Drawable placeholder, Options opts,
+        int sampleSize)
+    {
+        if (resId == View.NO_ID)
+        {
+            return null;
+        }
         
+        registerMemoryCallbacks(context);
+        Resources res = context.getResources();
         int contextId = context.hashCode();
-        HashMap<Integer, Bitmap> tracker = mBitmapTracker.get(contextId);
+        long key = keyOf(resId, sampleSize);
+        opts = withSampleSize(opts, sampleSize);
+        LazyBitmapDrawable drawable;
+        synchronized (DrawableUtil.class)
+        {
+            Bitmap bitmap = acquire(contextId, key);
+            if (bitmap != null)
+            {
+                return new BitmapDrawable(res, bitmap);
+            }
+            
+            drawable = new LazyBitmapDrawable(res, placeholder);
+            DecodeTask task = requestDecode(key, resId, res, opts);
+            task.contextIds.add(contextId);
+            task.drawables.add(drawable);
+            if (!task.queued)
+            {
+                task.queued = true;
+                getDecodeExecutor().execute(task);
+            }
+        }
+        
+        Options bounds = decodeBounds(res, resId, opts);
+        drawable.setIntrinsicSize(bounds.outWidth, bounds.outHeight);
+        return drawable;
+    }
+    
+    /**
+     * @return inSampleSize为sampleSize的opts，不同时复制一份
+     */
+    private static Options withSampleSize(Options opts, int sampleSize)
+    {
+        if (opts != null && Math.max(1, opts.inSampleSize) == sampleSize)
+        {
+            return opts;
+        }
+        Options sampled = copyOptions(opts);
+        sampled.inSampleSize = sampleSize;
+        return sampled;
+    }
+    
+    /**
+     * 宽高都不小于目标尺寸的最大inSampleSize，取2的幂，解码器也只按2的幂缩小
+     * @param reqWidth 目标宽度，小于等于0时不限制
+     * @param reqHeight 目标高度，小于等于0时不限制
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight)
+    {
+        if (reqWidth <= 0 && reqHeight <= 0)
+        {
+            return 1;
+        }
+        
+        int sampleSize = 1;
+        while ((reqWidth <= 0 || width / (sampleSize * 2) >= reqWidth)
+            && (reqHeight <= 0 || height / (sampleSize * 2) >= reqHeight))
+        {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+    
+    private static int getSampleSize(Resources res, int resId, Options opts, int reqWidth, int reqHeight)
+    {
+        if (reqWidth <= 0 && reqHeight <= 0)
+        {
+            return 1;
+        }
+        
+        long size = getSourceSize(res, resId, opts);
+        if (size < 0)
+        {
+            return 1;
+        }
+        return calculateInSampleSize((int)(size >>> 32), (int)size, reqWidth, reqHeight);
+    }
+    
+    /**
+     * 资源不缩小时解码的尺寸，只解码一次边界，之后从mSourceSizes取得
+     * @return 宽在高32位，高在低32位，失败时为-1
+     */
+    static long getSourceSize(Resources res, int resId, Options opts)
+    {
+        Long size;
+        synchronized (DrawableUtil.class)
+        {
+            size = mSourceSizes.get(resId);
+        }
+        if (size == null)
+        {
+            Options bounds = decodeBounds(res, resId, withSampleSize(opts, 1));
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+            {
+                return -1;
+            }
+            size = ((long)bounds.outWidth << 32) | bounds.outHeight;
+            synchronized (DrawableUtil.class)
+            {
+                mSourceSizes.put(resId, size);
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * 复制解码的输入参数，不含inBitmap和inTempStorage。opts为null时返回默认的参数
+     */
+    public static Options copyOptions(Options opts)
+    {
+        Options copy = new Options();
+        if (opts != null)
+        {
+            copy.inPreferredConfig = opts.inPreferredConfig;
+            copy.inSampleSize = opts.inSampleSize;
+            copy.inDensity = opts.inDensity;
+            copy.inTargetDensity = opts.inTargetDensity;
+            copy.inScreenDensity = opts.inScreenDensity;
+            copy.inScaled = opts.inScaled;
+            copy.inDither = opts.inDither;
+            copy.inPurgeable = opts.inPurgeable;
+            copy.inInputShareable = opts.inInputShareable;
+        }
+        return copy;
+    }
+    
+    /**
+     * 只解码图片的边界，不改变opts
+     * @return outWidth和outHeight为解码后的尺寸，失败时为-1
+     */
+    static Options decodeBounds(Resources res, int resId, Options opts)
+    {
+        Options bounds = copyOptions(opts);
+        bounds.inJustDecodeBounds = true;
+        bounds.outWidth = -1;
+        bounds.outHeight = -1;
+        BitmapFactory.decodeResource(res, resId, bounds);
+        return bounds;
+    }
+    
+    /**
+     * 已解码时为contextId增加一次引用
+     * @return 已解码的Bitmap，没有时返回null
+     */
+    private static Bitmap acquire(int contextId, long key)
+    {
+        BitmapEntry entry = mBitmaps.get(key);
+        if (entry == null || entry.bitmap.isRecycled())
+        {
+            mMissCount++;
+            return null;
+        }
+        
+        mHitCount++;
+        if (mVerbose)
+        {
+            Log.v(TAG, "repeat resource : " + entry.resId);
+        }
+        addReference(contextId, entry);
+        return entry.bitmap;
+    }
+    
+    private static void addReference(int contextId, BitmapEntry entry)
+    {
+        if (entry.refs == 0)
+        {
+            mUnheld.remove(entry.key);
+        }
+        
+        HashMap<Long, Integer> tracker = mBitmapTracker.get(contextId);
         
         // 创建新的追踪器
         if (tracker == null)
         {
-            tracker = new HashMap<Integer, Bitmap>();
+            tracker = new HashMap<Long, Integer>();
             mBitmapTracker.put(contextId, tracker);
-            Log.v(TAG, "add new tracker > context : " + contextId);
+            if (mVerbose)
+            {
+                Log.v(TAG, "add new tracker > context : " + contextId);
+            }
         }
         
-        // 如果该资源已经解码，则直接返回解码过的Bitmap
-        Set<Entry<Integer, HashMap<Integer, Bitmap>>> entries = mBitmapTracker.entrySet();
-        for (Entry<Integer, HashMap<Integer, Bitmap>> entry : entries)
+        Integer count = tracker.get(entry.key);
+        tracker.put(entry.key, count == null ? 1 : count + 1);
+        entry.refs++;
+        if (mVerbose)
+        {
+            Log.v(TAG, "track bitmap > context : " + contextId + ", res : " + entry.resId + ", refs: " + entry.refs);
+        }
+    }
+    
+    /**
+     * @return key正在进行的解码，没有时新建一个
+     */
+    private static DecodeTask requestDecode(long key, int resId, Resources res, Options opts)
+    {
+        DecodeTask task = mDecoding.get(key);
+        if (task == null)
         {
-            HashMap<Integer, Bitmap> value = entry.getValue();
-            if (value.containsKey(resId))
+            task = new DecodeTask(key, resId, res, opts);
+            mDecoding.put(key, task);
+        }
+        return task;
+    }
+    
+    /**
+     * 把解码结果放入缓存，为等待的Context加引用，并通知等待的线程和Drawable
+     */
+    private static void finishDecode(final DecodeTask task, final Bitmap bitmap)
+    {
+        BitmapEntry saved = null;
+        synchronized (DrawableUtil.class)
+        {
+            mDecoding.remove(task.key);
+            recordDecode(task.decodeMillis, bitmap != null);
+            if (bitmap != null)
             {
-                Log.v(TAG, "repeat resource : " + resId);
-                bitmap = value.get(resId);
-                tracker.put(resId, bitmap);
-                break;
+                BitmapEntry entry = mBitmaps.get(task.key);
+                if (entry == null)
+                {
+                    entry = new BitmapEntry(task.key, task.resId, bitmap);
+                    mBitmaps.put(task.key, entry);
+                }
+                else
+                {
+                    // 被外部回收了，重新解码，已有的引用数不变
+                    Log.w(TAG, "bitmap recycled outside > res : " + task.resId);
+                    mMemorySize -= entry.bytes;
+                    entry.bitmap = bitmap;
+                    entry.bytes = sizeOf(bitmap);
+                }
+                mMemorySize += entry.bytes;
+                if (task.saveTo != null && entry.saving == null)
+                {
+                    entry.saving = bitmap;
+                    saved = entry;
+                }
+                
+                for (int contextId : task.contextIds)
+                {
+                    addReference(contextId, entry);
+                }
+                trimToSize(mMemoryBudget);
             }
+            
+            task.bitmap = bitmap;
+            task.done = true;
+            DrawableUtil.class.notifyAll();
         }
         
-        if (bitmap == null)
+        if (saved != null)
         {
-            bitmap = BitmapFactory.decodeResource(res, resId, opts);
-            tracker.put(resId, bitmap);
-            Log.v(TAG, "track bitmap > context : " + contextId + ", res : " + resId + ", size: " + tracker.size());
+            saveToDisk(task, saved, bitmap);
         }
         
-        return new BitmapDrawable(res, bitmap);
+        if (bitmap != null && !task.drawables.isEmpty())
+        {
+            mMainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (LazyBitmapDrawable drawable : task.drawables)
+                    {
+                        drawable.setBitmap(bitmap);
+                    }
+                }
+            });
+        }
     }
     
+    /**
+     * 在后台线程写入磁盘缓存，同步取图片的线程解码完即可返回，不等待写文件
+     */
+    private static void saveToDisk(final DecodeTask task, final BitmapEntry entry, final Bitmap bitmap)
+    {
+        getDecodeExecutor().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    task.saveTo.put(task.resId, task.opts, bitmap);
+                }
+                catch (RuntimeException e)
+                {
+                    // 被外部回收了
+                    Log.w(TAG, "save failed > res : " + task.resId, e);
+                }
+                finally
+                {
+                    synchronized (DrawableUtil.class)
+                    {
+                        entry.saving = null;
+                        if (entry.evicted)
+                        {
+                            entry.evicted = false;
+                            BitmapPool.getDefault().put(bitmap);
+                        }
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return 后台解码的线程池，也用于{@link StreamingAnimationDrawable}
+     */
+    static synchronized ExecutorService getDecodeExecutor()
+    {
+        if (mDecodeExecutor == null)
+        {
+            mDecodeExecutor = Executors.newFixedThreadPool(DECODE_THREAD_COUNT, new ThreadFactory()
+            {
+                private int mCount;
+                
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    return new Thread(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG + " #" + ++mCount);
+                }
+            });
+        }
+        return mDecodeExecutor;
+    }
+    
+    /**
+     * 一个key的一次解码。由后台线程或第一个同步请求的线程执行，只执行一次
+     */
+    private static class DecodeTask implements Runnable
+    {
+        final long key;
+        
+        final int resId;
+        
+        final Resources res;
+        
+        final Options opts;
+        
+        /** 解码完成后加引用的Context，每个请求一次 */
+        final ArrayList<Integer> contextIds = new ArrayList<Integer>();
+        
+        /** 解码完成后在主线程换上Bitmap */
+        final ArrayList<LazyBitmapDrawable> drawables = new ArrayList<LazyBitmapDrawable>();
+        
+        // 以下在DrawableUtil.class的锁内读写
+        boolean queued;
+        
+        boolean started;
+        
+        boolean done;
+        
+        Bitmap bitmap;
+        
+        long decodeMillis;
+        
+        /** 刚解码、要写入的磁盘缓存，从磁盘读取或没有磁盘缓存时为null */
+        DiskBitmapCache saveTo;
+        
+        DecodeTask(long key, int resId, Resources res, Options opts)
+        {
+            this.key = key;
+            this.resId = resId;
+            this.res = res;
+            this.opts = opts;
+        }
+        
+        @Override
+        public void run()
+        {
+            synchronized (DrawableUtil.class)
+            {
+                if (started)
+                {
+                    return;
+                }
+                started = true;
+            }
+            
+            Bitmap bitmap = null;
+            DiskBitmapCache disk = getDiskCache();
+            long start = SystemClock.uptimeMillis();
+            try
+            {
+                if (disk != null)
+                {
+                    bitmap = disk.get(resId, opts);
+                }
+                if (bitmap == null)
+                {
+                    bitmap = BitmapPool.getDefault().decodeResource(res, resId, opts);
+                    saveTo = disk;
+                }
+            }
+            catch (OutOfMemoryError e)
+            {
+                Log.w(TAG, "decode failed > res : " + resId, e);
+            }
+            catch (RuntimeException e)
+            {
+                Log.w(TAG, "decode failed > res : " + resId, e);
+            }
+            finally
+            {
+                decodeMillis = SystemClock.uptimeMillis() - start;
+                // 失败时也要唤醒等待的线程
+                finishDecode(this, bitmap);
+            }
+        }
+        
+        /**
+         * 等待解码完成
+         * @return 解码的Bitmap，失败时为null
+         */
+        Bitmap await()
+        {
+            boolean interrupted = false;
+            synchronized (DrawableUtil.class)
+            {
+                while (!done)
+                {
+                    try
+                    {
+                        DrawableUtil.class.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return bitmap;
+        }
+    }
+    
+    /**
+     * 各状态的图片第一次显示时才解码，引用计数同{@link #getDrawable(Context, int)}
+     * @see LazyResourceDrawable
+     */
     public static Drawable getDrawable(Context context, int normalId, int pressedId)
     {
         StateListDrawable drawable = new StateListDrawable();
-        drawable.addState(new int[] {android.R.attr.state_pressed}, getDrawable(context, pressedId));
-        drawable.addState(new int[] {}, getDrawable(context, normalId));
+        drawable.addState(new int[] {android.R.attr.state_pressed}, getLazyDrawable(context, pressedId));
+        drawable.addState(new int[] {}, getLazyDrawable(context, normalId));
         return drawable;
     }
     
+    /**
+     * @see DrawableUtil.{@link #getDrawable(Context, int, int)}.
+     */
     public static Drawable getDrawable(Context context, int normalId, int pressedId, int checkedId)
     {
         StateListDrawable drawable = new StateListDrawable();
-        drawable.addState(new int[] {android.R.attr.state_pressed}, getDrawable(context, pressedId));
-        drawable.addState(new int[] {android.R.attr.state_checked}, getDrawable(context, checkedId));
-        drawable.addState(new int[] {}, getDrawable(context, normalId));
+        drawable.addState(new int[] {android.R.attr.state_pressed}, getLazyDrawable(context, pressedId));
+        drawable.addState(new int[] {android.R.attr.state_checked}, getLazyDrawable(context, checkedId));
+        drawable.addState(new int[] {}, getLazyDrawable(context, normalId));
         return drawable;
     }
     
+    /**
+     * 每个level的图片第一次显示时才解码
+     * @see DrawableUtil.{@link #getDrawable(Context, int, int)}.
+     */
     public static LevelListDrawable getLevelListDrawable(Context context, int... resId)
     {
         if (resId == null)
@@ -211,11 +1244,27 @@ public class DrawableUtil
         LevelListDrawable d = new LevelListDrawable();
         for (int id : resId)
         {
-            d.addLevel(id, id, getDrawable(context, id));
+            d.addLevel(id, id, getLazyDrawable(context, id));
         }
         return d;
     }
     
+    private static Drawable getLazyDrawable(Context context, int resId)
+    {
+        return resId == View.NO_ID ? null : new LazyResourceDrawable(context, resId);
+    }
+    
+    /**
+     * 释放超过idleMillis没有画过、当前不显示的状态图片的引用，下次显示时再解码。
+     * 只在主线程调用
+     * @return 释放的个数
+     * @see DrawableUtil.{@link #getDrawable(Context, int, int)}.
+     */
+    public static int releaseIdleStateDrawables(long idleMillis)
+    {
+        return LazyResourceDrawable.releaseIdle(idleMillis);
+    }
+    
     public static AnimationDrawable getAnimationDrawable(Context context, int[] resIds, int duration, boolean oneShot)
     {
         int length = resIds.length;
@@ -229,6 +1278,10 @@ public class DrawableUtil
         return getAnimationDrawable(context, resIds, durations, oneShot);
     }
     
+    /**
+     * 返回{@link StreamingAnimationDrawable}，播放时在后台解码即将显示的帧，
+     * 帧数多时内存不随帧数增加。帧不经过缓存，不再使用时调用它的recycle()
+     */
     public static AnimationDrawable getAnimationDrawable(Context context, int[] resIds, int[] durations, boolean oneShot)
     {
         if (resIds == null || durations == null || resIds.length == 0 || durations.length == 0)
@@ -241,14 +1294,7 @@ public class DrawableUtil
             throw new IllegalArgumentException("resources not mapping with durations");
         }
         
-        AnimationDrawable drawable = new AnimationDrawable();
-        drawable.setOneShot(oneShot);
-        
-        for (int i = 0; i != resIds.length; i++)
-        {
-            drawable.addFrame(getDrawable(context, resIds[i]), durations[i]);
-        }
-        return drawable;
+        return new StreamingAnimationDrawable(context.getResources(), resIds, durations, oneShot, null);
     }
     
 }
@@ -0,0 +1,191 @@
+package com.swordy.library.android.util;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+/**
+ * 先显示占位图，Bitmap解码完成后换上的Drawable，只在主线程使用
+ * @see DrawableUtil#getDrawableAsync(android.content.Context, int, Drawable)
+ */
+public class LazyBitmapDrawable extends Drawable implements Drawable.Callback
+{
+    private final Resources mRes;
+    
+    private final Drawable mPlaceholder;
+    
+    private BitmapDrawable mDrawable;
+    
+    private int mWidth = -1;
+    
+    private int mHeight = -1;
+    
+    private int mAlpha = 255;
+    
+    private ColorFilter mColorFilter;
+    
+    /**
+     * @param placeholder Bitmap换上前显示，可以为null
+     */
+    public LazyBitmapDrawable(Resources res, Drawable placeholder)
+    {
+        mRes = res;
+        mPlaceholder = placeholder;
+        if (placeholder != null)
+        {
+            placeholder.setCallback(this);
+        }
+    }
+    
+    /**
+     * @return Bitmap是否已换上
+     */
+    public boolean isLoaded()
+    {
+        return mDrawable != null;
+    }
+    
+    /**
+     * 设置固有尺寸，Bitmap换上前后一致，小于0时使用占位图或Bitmap的尺寸
+     */
+    void setIntrinsicSize(int width, int height)
+    {
+        mWidth = width;
+        mHeight = height;
+    }
+    
+    /**
+     * 换上解码好的Bitmap并重绘
+     */
+    void setBitmap(Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled())
+        {
+            return;
+        }
+        
+        mDrawable = new BitmapDrawable(mRes, bitmap);
+        mDrawable.setBounds(getBounds());
+        mDrawable.setAlpha(mAlpha);
+        mDrawable.setColorFilter(mColorFilter);
+        if (mPlaceholder != null)
+        {
+            mPlaceholder.setCallback(null);
+        }
+        invalidateSelf();
+    }
+    
+    private Drawable getShown()
+    {
+        return mDrawable != null ? mDrawable : mPlaceholder;
+    }
+    
+    @Override
+    public void draw(Canvas canvas)
+    {
+        Drawable d = getShown();
+        if (d != null)
+        {
+            d.draw(canvas);
+        }
+    }
+    
+    @Override
+    protected void onBoundsChange(Rect bounds)
+    {
+        if (mPlaceholder != null)
+        {
+            mPlaceholder.setBounds(bounds);
+        }
+        if (mDrawable != null)
+        {
+            mDrawable.setBounds(bounds);
+        }
+    }
+    
+    @Override
+    public boolean isStateful()
+    {
+        return mDrawable == null && mPlaceholder != null && mPlaceholder.isStateful();
+    }
+    
+    @Override
+    protected boolean onStateChange(int[] state)
+    {
+        return mDrawable == null && mPlaceholder != null && mPlaceholder.setState(state);
+    }
+    
+    @Override
+    public void setAlpha(int alpha)
+    {
+        mAlpha = alpha;
+        Drawable d = getShown();
+        if (d != null)
+        {
+            d.setAlpha(alpha);
+        }
+    }
+    
+    @Override
+    public void setColorFilter(ColorFilter cf)
+    {
+        mColorFilter = cf;
+        Drawable d = getShown();
+        if (d != null)
+        {
+            d.setColorFilter(cf);
+        }
+    }
+    
+    @Override
+    public int getOpacity()
+    {
+        Drawable d = getShown();
+        return d != null ? d.getOpacity() : PixelFormat.TRANSPARENT;
+    }
+    
+    @Override
+    public int getIntrinsicWidth()
+    {
+        if (mWidth >= 0)
+        {
+            return mWidth;
+        }
+        Drawable d = getShown();
+        return d != null ? d.getIntrinsicWidth() : -1;
+    }
+    
+    @Override
+    public int getIntrinsicHeight()
+    {
+        if (mHeight >= 0)
+        {
+            return mHeight;
+        }
+        Drawable d = getShown();
+        return d != null ? d.getIntrinsicHeight() : -1;
+    }
+    
+    @Override
+    public void invalidateDrawable(Drawable who)
+    {
+        invalidateSelf();
+    }
+    
+    @Override
+    public void scheduleDrawable(Drawable who, Runnable what, long when)
+    {
+        scheduleSelf(what, when);
+    }
+    
+    @Override
+    public void unscheduleDrawable(Drawable who, Runnable what)
+    {
+        unscheduleSelf(what);
+    }
+}
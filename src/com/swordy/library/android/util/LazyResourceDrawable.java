@@ -0,0 +1,264 @@
+package com.swordy.library.android.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+
+/**
+ * 第一次画时才通过{@link DrawableUtil#getDrawable(Context, int, Options)}取Bitmap的Drawable，只在主线程使用。
+ * <p>
+ * 用作StateListDrawable、LevelListDrawable的子项，很少显示的状态不会预先解码。
+ * 固有尺寸在第一次用到时由只解码边界得到，取Bitmap前后一致。不显示的状态可以通过{@link #release()}
+ * 或{@link DrawableUtil#releaseIdleStateDrawables(long)}释放引用，下次画时再取。
+ */
+public class LazyResourceDrawable extends Drawable
+{
+    /**
+     * 持有Bitmap引用的实例，释放长时间没画过的状态时遍历。
+     * 注册时顺便去掉已被回收的，release时注销，不调用releaseIdle时也不会一直增长
+     */
+    private static final ArrayList<WeakReference<LazyResourceDrawable>> mLoaded =
+        new ArrayList<WeakReference<LazyResourceDrawable>>();
+    
+    private final Context mContext;
+    
+    private final int mResId;
+    
+    private final Options mOptions;
+    
+    /**
+     * 固有尺寸，还没有解码边界时为-2
+     */
+    private int mWidth = -2;
+    
+    private int mHeight = -2;
+    
+    private BitmapDrawable mDrawable;
+    
+    private boolean mRegistered;
+    
+    private long mLastDrawTime;
+    
+    private int mAlpha = 255;
+    
+    private ColorFilter mColorFilter;
+    
+    public LazyResourceDrawable(Context context, int resId)
+    {
+        this(context, resId, null);
+    }
+    
+    /**
+     * @param opts 解码参数，为null时使用{@link DrawableUtil#getOptimizeOptions(Resources)}
+     */
+    public LazyResourceDrawable(Context context, int resId, Options opts)
+    {
+        mContext = context;
+        mResId = resId;
+        mOptions = opts;
+    }
+    
+    private Options getOptions()
+    {
+        return mOptions != null ? mOptions : DrawableUtil.getOptimizeOptions(mContext.getResources());
+    }
+    
+    private void measure()
+    {
+        if (mWidth != -2)
+        {
+            return;
+        }
+        
+        Options opts = getOptions();
+        long size = DrawableUtil.getSourceSize(mContext.getResources(), mResId, opts);
+        int sampleSize = Math.max(1, opts.inSampleSize);
+        mWidth = size < 0 ? -1 : (int)(size >>> 32) / sampleSize;
+        mHeight = size < 0 ? -1 : (int)size / sampleSize;
+    }
+    
+    public int getResourceId()
+    {
+        return mResId;
+    }
+    
+    /**
+     * @return 是否持有Bitmap
+     */
+    public boolean isLoaded()
+    {
+        return mDrawable != null;
+    }
+    
+    /**
+     * 释放Bitmap的引用，下次画时再取
+     */
+    public void release()
+    {
+        if (mDrawable == null)
+        {
+            return;
+        }
+        
+        mDrawable = null;
+        DrawableUtil.release(mContext, mResId, getOptions());
+        if (mRegistered)
+        {
+            mRegistered = false;
+            prune(this);
+        }
+    }
+    
+    /**
+     * 从mLoaded中去掉已被回收的实例和removed
+     */
+    private static void prune(LazyResourceDrawable removed)
+    {
+        Iterator<WeakReference<LazyResourceDrawable>> it = mLoaded.iterator();
+        while (it.hasNext())
+        {
+            LazyResourceDrawable d = it.next().get();
+            if (d == null || d == removed)
+            {
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * 释放超过idleMillis没有画过、当前不显示的实例
+     * @return 释放的个数
+     */
+    static int releaseIdle(long idleMillis)
+    {
+        long now = SystemClock.uptimeMillis();
+        int released = 0;
+        Iterator<WeakReference<LazyResourceDrawable>> it = mLoaded.iterator();
+        while (it.hasNext())
+        {
+            LazyResourceDrawable d = it.next().get();
+            if (d != null && d.isLoaded() && (d.isVisible() || now - d.mLastDrawTime < idleMillis))
+            {
+                continue;
+            }
+            
+            it.remove();
+            if (d != null)
+            {
+                d.mRegistered = false;
+                if (d.isLoaded())
+                {
+                    d.release();
+                    released++;
+                }
+            }
+        }
+        return released;
+    }
+    
+    /**
+     * @return 要画的Drawable，Bitmap被外部回收过时重新取，解码失败时为null
+     */
+    private BitmapDrawable load()
+    {
+        if (mDrawable != null)
+        {
+            Bitmap bitmap = mDrawable.getBitmap();
+            if (bitmap != null && !bitmap.isRecycled())
+            {
+                return mDrawable;
+            }
+        }
+        
+        Drawable d = DrawableUtil.getDrawable(mContext, mResId, getOptions());
+        if (!(d instanceof BitmapDrawable) || ((BitmapDrawable)d).getBitmap() == null)
+        {
+            mDrawable = null;
+            return null;
+        }
+        
+        mDrawable = (BitmapDrawable)d;
+        mDrawable.setBounds(getBounds());
+        mDrawable.setAlpha(mAlpha);
+        mDrawable.setColorFilter(mColorFilter);
+        if (!mRegistered)
+        {
+            mRegistered = true;
+            prune(null);
+            mLoaded.add(new WeakReference<LazyResourceDrawable>(this));
+        }
+        return mDrawable;
+    }
+    
+    @Override
+    public void draw(Canvas canvas)
+    {
+        mLastDrawTime = SystemClock.uptimeMillis();
+        BitmapDrawable d = load();
+        if (d != null)
+        {
+            d.draw(canvas);
+        }
+    }
+    
+    @Override
+    protected void onBoundsChange(Rect bounds)
+    {
+        if (mDrawable != null)
+        {
+            mDrawable.setBounds(bounds);
+        }
+    }
+    
+    @Override
+    public void setAlpha(int alpha)
+    {
+        mAlpha = alpha;
+        if (mDrawable != null)
+        {
+            mDrawable.setAlpha(alpha);
+        }
+    }
+    
+    @Override
+    public void setColorFilter(ColorFilter cf)
+    {
+        mColorFilter = cf;
+        if (mDrawable != null)
+        {
+            mDrawable.setColorFilter(cf);
+        }
+    }
+    
+    @Override
+    public int getOpacity()
+    {
+        return mDrawable != null ? mDrawable.getOpacity() : PixelFormat.TRANSLUCENT;
+    }
+    
+    @Override
+    public int getIntrinsicWidth()
+    {
+        measure();
+        return mWidth;
+    }
+    
+    @Override
+    public int getIntrinsicHeight()
+    {
+        measure();
+        return mHeight;
+    }
+}
@@ -0,0 +1,520 @@
+package com.swordy.library.android.util;
+
+import java.util.ArrayList;
+
+import android.annotation.SuppressLint;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.AnimationDrawable;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * 边播放边解码的帧动画，只在主线程使用
+ * <p>
+ * 不预先解码所有帧，只在后台线程解码即将播放的{@link #FRAME_BUFFERS}-1帧，
+ * 放在{@link #FRAME_BUFFERS}个轮流使用的Bitmap中，支持的系统上通过inBitmap复用，
+ * 内存与帧数无关。播放到还没解码好的帧时继续显示上一帧，记为丢帧。
+ * <p>
+ * 帧不经过DrawableUtil的缓存，不再使用时调用{@link #recycle()}释放。
+ * @see DrawableUtil#getAnimationDrawable(android.content.Context, int[], int[], boolean)
+ */
+public class StreamingAnimationDrawable extends AnimationDrawable
+{
+    private static final String TAG = "AndroidLibrary.StreamingAnimationDrawable";
+    
+    /**
+     * 帧缓冲的个数：正在显示的一帧和预先解码的帧
+     */
+    public static final int FRAME_BUFFERS = 3;
+    
+    private static final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    
+    private final Resources mRes;
+    
+    private final int[] mResIds;
+    
+    private final Options mOptions;
+    
+    /** 帧缓冲和其中的帧序号，没有帧时为-1 */
+    private final Bitmap[] mBuffers = new Bitmap[FRAME_BUFFERS];
+    
+    private final int[] mBufferFrames = new int[FRAME_BUFFERS];
+    
+    /** 被替换下来、可以用来解码的Bitmap，与帧缓冲合计不超过FRAME_BUFFERS个 */
+    private final ArrayList<Bitmap> mSpares = new ArrayList<Bitmap>();
+    
+    /** 正在解码的帧，没有时为-1，同时只解码一帧 */
+    private int mDecodingFrame = -1;
+    
+    /** 解码好的帧没有缓冲可放，到下次切换帧前不再预先解码 */
+    private boolean mStalled;
+    
+    private int mCurrentFrame = -1;
+    
+    /** 最近一次画出的Bitmap，当前帧还没解码好时继续显示 */
+    private Bitmap mLastShown;
+    
+    private int mWidth;
+    
+    private int mHeight;
+    
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    
+    private boolean mRecycled;
+    
+    private long mShownFrameCount;
+    
+    private long mDroppedFrameCount;
+    
+    /**
+     * 同步解码第一帧，确定固有尺寸，其余帧播放时再解码
+     * @param opts 解码参数，为null时使用{@link DrawableUtil#getOptimizeOptions(Resources)}
+     */
+    @SuppressLint("NewApi")
+    public StreamingAnimationDrawable(Resources res, int[] resIds, int[] durations, boolean oneShot, Options opts)
+    {
+        if (resIds.length != durations.length)
+        {
+            throw new IllegalArgumentException("resources not mapping with durations");
+        }
+        
+        mRes = res;
+        mResIds = resIds.clone();
+        mOptions = DrawableUtil.copyOptions(opts != null ? opts : DrawableUtil.getOptimizeOptions(res));
+        if (BitmapPool.isReuseSupported())
+        {
+            // 帧缓冲要用作inBitmap，必须可变，不能是可清除的
+            mOptions.inMutable = true;
+            mOptions.inPurgeable = false;
+            mOptions.inInputShareable = false;
+        }
+        for (int i = 0; i != FRAME_BUFFERS; i++)
+        {
+            mBufferFrames[i] = -1;
+        }
+        
+        Bitmap first = BitmapFactory.decodeResource(res, resIds[0], mOptions);
+        if (first != null)
+        {
+            // 与BitmapDrawable一样按密度换算
+            BitmapDrawable d = new BitmapDrawable(res, first);
+            mWidth = d.getIntrinsicWidth();
+            mHeight = d.getIntrinsicHeight();
+            install(0, first);
+        }
+        
+        setOneShot(oneShot);
+        for (int i = 0; i != resIds.length; i++)
+        {
+            addFrame(new Frame(i), durations[i]);
+        }
+    }
+    
+    /**
+     * @return 显示过的帧数
+     */
+    public long getShownFrameCount()
+    {
+        return mShownFrameCount;
+    }
+    
+    /**
+     * @return 轮到时还没解码好、继续显示上一帧的帧数
+     */
+    public long getDroppedFrameCount()
+    {
+        return mDroppedFrameCount;
+    }
+    
+    public void resetFrameStats()
+    {
+        mShownFrameCount = 0;
+        mDroppedFrameCount = 0;
+    }
+    
+    /**
+     * 停止播放并释放所有帧缓冲，之后只显示空白
+     */
+    public void recycle()
+    {
+        stop();
+        mRecycled = true;
+        for (int i = 0; i != FRAME_BUFFERS; i++)
+        {
+            if (mBuffers[i] != null)
+            {
+                mBuffers[i].recycle();
+                mBuffers[i] = null;
+            }
+            mBufferFrames[i] = -1;
+        }
+        for (Bitmap spare : mSpares)
+        {
+            spare.recycle();
+        }
+        mSpares.clear();
+        mLastShown = null;
+    }
+    
+    @Override
+    public boolean selectDrawable(int idx)
+    {
+        boolean changed = super.selectDrawable(idx);
+        if (idx < 0 || idx >= mResIds.length || mRecycled)
+        {
+            return changed;
+        }
+        
+        if (idx != mCurrentFrame)
+        {
+            mCurrentFrame = idx;
+            mShownFrameCount++;
+            int slot = findBuffer(idx);
+            if (slot >= 0)
+            {
+                // 马上就会画出，上一帧的缓冲可以用来解码
+                mLastShown = mBuffers[slot];
+            }
+            else
+            {
+                mDroppedFrameCount++;
+                if (DrawableUtil.isVerboseLogging())
+                {
+                    Log.v(TAG, "frame dropped : " + idx);
+                }
+            }
+        }
+        mStalled = false;
+        decodeAhead();
+        return changed;
+    }
+    
+    private int findBuffer(int frame)
+    {
+        for (int i = 0; i != FRAME_BUFFERS; i++)
+        {
+            if (mBufferFrames[i] == frame)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * 从当前帧起第offset帧的序号，单次播放超出最后一帧时为-1
+     */
+    private int frameAfter(int offset)
+    {
+        int frame = Math.max(mCurrentFrame, 0) + offset;
+        if (frame >= mResIds.length)
+        {
+            frame = isOneShot() ? -1 : frame % mResIds.length;
+        }
+        return frame;
+    }
+    
+    /**
+     * @return 帧是否是当前帧或接下来要播放的帧
+     */
+    private boolean isWanted(int frame)
+    {
+        for (int offset = 0; offset != FRAME_BUFFERS; offset++)
+        {
+            if (frameAfter(offset) == frame)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * @return 帧缓冲和备用的Bitmap的总数，不含正在解码的
+     */
+    private int getBitmapCount()
+    {
+        int count = mSpares.size();
+        for (int i = 0; i != FRAME_BUFFERS; i++)
+        {
+            if (mBuffers[i] != null)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * 留作下次解码，不能复用或已有FRAME_BUFFERS个Bitmap时直接回收
+     */
+    private void keepSpare(Bitmap bitmap)
+    {
+        if (BitmapPool.isReuseSupported() && getBitmapCount() < FRAME_BUFFERS)
+        {
+            mSpares.add(bitmap);
+        }
+        else
+        {
+            bitmap.recycle();
+        }
+    }
+    
+    /**
+     * @return 用来解码的Bitmap：备用的，或不再需要的帧缓冲，都没有时为null
+     */
+    private Bitmap takeSpare()
+    {
+        if (!mSpares.isEmpty())
+        {
+            return mSpares.remove(mSpares.size() - 1);
+        }
+        if (!BitmapPool.isReuseSupported())
+        {
+            return null;
+        }
+        
+        for (int i = 0; i != FRAME_BUFFERS; i++)
+        {
+            if (mBuffers[i] != null && !isWanted(mBufferFrames[i]) && mBuffers[i] != mLastShown)
+            {
+                Bitmap spare = mBuffers[i];
+                mBuffers[i] = null;
+                mBufferFrames[i] = -1;
+                return spare;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 解码最近的一个还没有缓冲的帧，完成后继续，直到缓冲满
+     */
+    private void decodeAhead()
+    {
+        if (mDecodingFrame >= 0 || mRecycled || mStalled)
+        {
+            return;
+        }
+        
+        for (int offset = 0; offset != FRAME_BUFFERS; offset++)
+        {
+            final int frame = frameAfter(offset);
+            if (frame < 0 || findBuffer(frame) >= 0)
+            {
+                continue;
+            }
+            
+            mDecodingFrame = frame;
+            final Bitmap spare = takeSpare();
+            DrawableUtil.getDecodeExecutor().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    decodeFrame(frame, spare);
+                }
+            });
+            return;
+        }
+    }
+    
+    /**
+     * 在后台线程解码，尽量复用spare，结果交给主线程
+     */
+    @SuppressLint("NewApi")
+    private void decodeFrame(final int frame, final Bitmap spare)
+    {
+        Options opts = DrawableUtil.copyOptions(mOptions);
+        Bitmap bitmap = null;
+        boolean spareUsed = false;
+        try
+        {
+            if (spare != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            {
+                opts.inBitmap = spare;
+                try
+                {
+                    bitmap = BitmapFactory.decodeResource(mRes, mResIds[frame], opts);
+                    spareUsed = bitmap == spare;
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // 帧的尺寸不同，不能复用
+                    opts.inBitmap = null;
+                }
+            }
+            if (bitmap == null)
+            {
+                bitmap = BitmapFactory.decodeResource(mRes, mResIds[frame], opts);
+            }
+        }
+        catch (OutOfMemoryError e)
+        {
+            Log.w(TAG, "decode frame failed : " + frame, e);
+        }
+        
+        final Bitmap result = bitmap;
+        final boolean keepSpare = spare != null && !spareUsed;
+        mMainHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mDecodingFrame = -1;
+                if (mRecycled)
+                {
+                    if (keepSpare)
+                    {
+                        spare.recycle();
+                    }
+                    if (result != null)
+                    {
+                        result.recycle();
+                    }
+                    return;
+                }
+                
+                if (result != null && install(frame, result) && frame == mCurrentFrame)
+                {
+                    invalidateSelf();
+                }
+                if (keepSpare)
+                {
+                    keepSpare(spare);
+                }
+                decodeAhead();
+            }
+        });
+    }
+    
+    /**
+     * 把帧放入一个不再需要的缓冲，替换下来的Bitmap留作下次解码
+     * @return 是否放入，没有可用的缓冲时回收bitmap
+     */
+    private boolean install(int frame, Bitmap bitmap)
+    {
+        int slot = -1;
+        for (int i = 0; i != FRAME_BUFFERS && slot < 0; i++)
+        {
+            if (mBuffers[i] == null)
+            {
+                slot = i;
+            }
+        }
+        for (int i = 0; i != FRAME_BUFFERS && slot < 0; i++)
+        {
+            if (!isWanted(mBufferFrames[i]) && mBuffers[i] != mLastShown)
+            {
+                slot = i;
+            }
+        }
+        if (slot < 0)
+        {
+            // 同时只解码一帧，需要的帧不超过缓冲数，一般不会发生。
+            // 马上再解码也放不下，等切换帧后再继续
+            Log.w(TAG, "no free frame buffer : " + frame);
+            bitmap.recycle();
+            mStalled = true;
+            return false;
+        }
+        
+        Bitmap replaced = mBuffers[slot];
+        mBuffers[slot] = bitmap;
+        mBufferFrames[slot] = frame;
+        if (replaced != null)
+        {
+            keepSpare(replaced);
+        }
+        return true;
+    }
+    
+    /**
+     * @return 要画的Bitmap，帧还没解码好时为上一次画的
+     */
+    private Bitmap getFrameBitmap(int frame)
+    {
+        int slot = findBuffer(frame);
+        if (slot >= 0)
+        {
+            mLastShown = mBuffers[slot];
+        }
+        return mLastShown;
+    }
+    
+    /**
+     * 动画的一帧，画的时候才从帧缓冲取Bitmap
+     */
+    private class Frame extends Drawable
+    {
+        private final int mIndex;
+        
+        Frame(int index)
+        {
+            mIndex = index;
+        }
+        
+        @Override
+        public void draw(Canvas canvas)
+        {
+            Bitmap bitmap = getFrameBitmap(mIndex);
+            if (bitmap != null && !bitmap.isRecycled())
+            {
+                canvas.drawBitmap(bitmap, null, getBounds(), mPaint);
+            }
+        }
+        
+        @Override
+        public void setAlpha(int alpha)
+        {
+            mPaint.setAlpha(alpha);
+        }
+        
+        @Override
+        public void setColorFilter(ColorFilter cf)
+        {
+            mPaint.setColorFilter(cf);
+        }
+        
+        @Override
+        public void setDither(boolean dither)
+        {
+            mPaint.setDither(dither);
+        }
+        
+        @Override
+        public void setFilterBitmap(boolean filter)
+        {
+            mPaint.setFilterBitmap(filter);
+        }
+        
+        @Override
+        public int getOpacity()
+        {
+            return PixelFormat.TRANSLUCENT;
+        }
+        
+        @Override
+        public int getIntrinsicWidth()
+        {
+            return mWidth;
+        }
+        
+        @Override
+        public int getIntrinsicHeight()
+        {
+            return mHeight;
+        }
+    }
+}
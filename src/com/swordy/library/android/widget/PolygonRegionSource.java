@@ -0,0 +1,194 @@
+package com.swordy.library.android.widget;
+
+import java.util.ArrayList;
+
+import android.graphics.RectF;
+
+/**
+ * 由多边形组成的区域来源，点击判断与分辨率无关，缩放后边界仍然准确，不占用位图内存
+ * <p>
+ * 多边形的坐标在构造时给定的设计尺寸中，铺满视图时按比例缩放。区域重叠时后加入的在上面。
+ * 第一次查找时按网格建立空间索引，每格只记录外接矩形与它相交的多边形，
+ * 查找时只对所在格中的多边形做射线判断。
+ */
+public class PolygonRegionSource implements RegionSource
+{
+    /**
+     * 默认每边的网格数
+     */
+    public static final int DEFAULT_GRID_SIZE = 16;
+    
+    private final float mWidth;
+    
+    private final float mHeight;
+    
+    private final int mGridSize;
+    
+    private final ArrayList<Polygon> mPolygons = new ArrayList<Polygon>();
+    
+    /**
+     * 每格中多边形的序号，从后加入的到先加入的；为null时需要重建
+     */
+    private int[][] mGrid;
+    
+    private static class Polygon
+    {
+        final int id;
+        
+        /** x0, y0, x1, y1, ... */
+        final float[] points;
+        
+        final RectF bounds = new RectF();
+        
+        Polygon(int id, float[] points)
+        {
+            this.id = id;
+            this.points = points;
+            bounds.set(points[0], points[1], points[0], points[1]);
+            for (int i = 2; i < points.length; i += 2)
+            {
+                bounds.union(points[i], points[i + 1]);
+            }
+        }
+        
+        /**
+         * 奇偶规则，向右的射线与边相交奇数次时在内部
+         */
+        boolean contains(float x, float y)
+        {
+            if (x < bounds.left || x > bounds.right || y < bounds.top || y > bounds.bottom)
+            {
+                return false;
+            }
+            
+            boolean inside = false;
+            int n = points.length / 2;
+            for (int i = 0, j = n - 1; i != n; j = i++)
+            {
+                float xi = points[i * 2];
+                float yi = points[i * 2 + 1];
+                float xj = points[j * 2];
+                float yj = points[j * 2 + 1];
+                if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+                {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+    }
+    
+    /**
+     * @param width 多边形坐标所在的设计宽度，如设计图的宽度
+     * @param height 设计高度
+     */
+    public PolygonRegionSource(float width, float height)
+    {
+        this(width, height, DEFAULT_GRID_SIZE);
+    }
+    
+    /**
+     * @param gridSize 空间索引每边的格数，区域多时可以加大
+     */
+    public PolygonRegionSource(float width, float height, int gridSize)
+    {
+        if (width <= 0 || height <= 0 || gridSize <= 0)
+        {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        mWidth = width;
+        mHeight = height;
+        mGridSize = gridSize;
+    }
+    
+    /**
+     * 加入一个多边形区域，同一id可以有多个多边形
+     * @param points 顶点坐标x0, y0, x1, y1, ...，至少3个顶点
+     */
+    public void addPolygon(int id, float[] points)
+    {
+        if (points == null || points.length < 6 || points.length % 2 != 0)
+        {
+            throw new IllegalArgumentException("polygon needs at least 3 points");
+        }
+        mPolygons.add(new Polygon(id, points.clone()));
+        mGrid = null;
+    }
+    
+    /**
+     * 加入一个矩形区域
+     */
+    public void addRect(int id, float left, float top, float right, float bottom)
+    {
+        addPolygon(id, new float[] {left, top, right, top, right, bottom, left, bottom});
+    }
+    
+    private int cellOf(float v, float size)
+    {
+        int cell = (int)(v / size * mGridSize);
+        return Math.max(0, Math.min(mGridSize - 1, cell));
+    }
+    
+    private void buildGrid()
+    {
+        ArrayList<ArrayList<Integer>> cells = new ArrayList<ArrayList<Integer>>(mGridSize * mGridSize);
+        for (int i = 0; i != mGridSize * mGridSize; i++)
+        {
+            cells.add(new ArrayList<Integer>());
+        }
+        
+        // 从后往前，查找时先遇到上面的多边形
+        for (int p = mPolygons.size() - 1; p >= 0; p--)
+        {
+            RectF bounds = mPolygons.get(p).bounds;
+            int left = cellOf(bounds.left, mWidth);
+            int right = cellOf(bounds.right, mWidth);
+            int top = cellOf(bounds.top, mHeight);
+            int bottom = cellOf(bounds.bottom, mHeight);
+            for (int y = top; y <= bottom; y++)
+            {
+                for (int x = left; x <= right; x++)
+                {
+                    cells.get(y * mGridSize + x).add(p);
+                }
+            }
+        }
+        
+        mGrid = new int[cells.size()][];
+        for (int i = 0; i != mGrid.length; i++)
+        {
+            ArrayList<Integer> cell = cells.get(i);
+            mGrid[i] = new int[cell.size()];
+            for (int j = 0; j != mGrid[i].length; j++)
+            {
+                mGrid[i][j] = cell.get(j);
+            }
+        }
+    }
+    
+    @Override
+    public int getRegionId(float x, float y)
+    {
+        if (x < 0 || x >= 1 || y < 0 || y >= 1 || mPolygons.isEmpty())
+        {
+            return NO_REGION_ID;
+        }
+        
+        if (mGrid == null)
+        {
+            buildGrid();
+        }
+        
+        float px = x * mWidth;
+        float py = y * mHeight;
+        for (int p : mGrid[cellOf(py, mHeight) * mGridSize + cellOf(px, mWidth)])
+        {
+            Polygon polygon = mPolygons.get(p);
+            if (polygon.contains(px, py))
+            {
+                return polygon.id;
+            }
+        }
+        return NO_REGION_ID;
+    }
+}
@@ -1,35 +1,28 @@
 package com.swordy.library.android.widget;
 
-import java.lang.ref.WeakReference;
-
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.Canvas;
 import android.graphics.Rect;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.LevelListDrawable;
 import android.os.Handler;
 import android.os.Message;
 import android.util.AttributeSet;
-import android.util.DisplayMetrics;
-import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewConfiguration;
+import com.swordy.library.android.util.BitmapPool;
+import com.swordy.library.android.util.DrawableUtil;
+import com.swordy.library.android.util.LazyResourceDrawable;
 
 /**
  * @author  yWX191142
  */
 public class RegionButton extends View
 {
-    private static final String TAG = RegionButton.class.getSimpleName();
-    
-    private static final int NO_REGION_ID = 0xffffffff;
+    private static final int NO_REGION_ID = RegionSource.NO_REGION_ID;
     
     private static final int MSG_CHECK_LONG_PRESSED = 0;
     
@@ -37,6 +30,11 @@ public class RegionButton extends View
     
     private static final int FLAG_REGION_LONG_PRESSED = 0x00000002;
     
+    /**
+     * 区域图默认的缩小倍数，点击不需要逐像素的精度
+     */
+    public static final int DEFAULT_REGION_MAP_SAMPLE_SIZE = 2;
+    
     private int mFlags;
     
     private Context mContext;
@@ -51,11 +49,35 @@ public class RegionButton extends View
     
     private int mPressedRegionId;
     
-    private LevelListDrawable mRegionDrawable;
+    /**
+     * 区域id到它在mRegionIds中的序号
+     */
+    private RegionIdMap mRegionIdMap;
     
-    private WeakReference<Bitmap>[] mRefRegionDrawableBitmaps;
+    /**
+     * 与mRegionIds对应的按下时的图片，第一次按下时创建，画时才从DrawableUtil取Bitmap。
+     * 不显示的可以在内存紧张时被释放，见DrawableUtil.trimMemory
+     */
+    private LazyResourceDrawable[] mRegionDrawables;
     
-    private Bitmap mRegionMapBitmap;
+    /**
+     * 正在显示的mRegionDrawables的序号，没有时为-1
+     */
+    private int mCurrentRegion = -1;
+    
+    /**
+     * 点击位置到区域id，区域图时为转换成的索引，不保留区域图的Bitmap
+     */
+    private RegionSource mRegionSource;
+    
+    private int mRegionMapSampleSize = DEFAULT_REGION_MAP_SAMPLE_SIZE;
+    
+    /**
+     * 视图坐标乘以它们得到归一化的坐标，尺寸变化时更新，区域来源本身不缩放
+     */
+    private float mRegionScaleX = 1;
+    
+    private float mRegionScaleY = 1;
     
     private OnRegionClickListener mOnRegionClickListener;
     
@@ -122,28 +144,72 @@ public class RegionButton extends View
         setLongClickable(true);
     }
     
+    /**
+     * 设置区域图的缩小倍数，之后调用setRegionMap时生效
+     * @param sampleSize 同Options.inSampleSize，1为不缩小
+     */
+    public void setRegionMapSampleSize(int sampleSize)
+    {
+        mRegionMapSampleSize = Math.max(1, sampleSize);
+    }
+    
+    public int getRegionMapSampleSize()
+    {
+        return mRegionMapSampleSize;
+    }
+    
+    /**
+     * @return DrawableUtil共用参数的副本，之后修改不影响其他使用者
+     */
+    private Options getDefaultOptions()
+    {
+        return DrawableUtil.copyOptions(DrawableUtil.getOptimizeOptions(getResources()));
+    }
+    
     public void setRegionMap(int regionMapId, int[] regionIds, int[] regionDrawableIds)
     {
-        Options opts = new Options();
-        DisplayMetrics dm = getResources().getDisplayMetrics();
-        opts = new Options();
-        opts.inPreferredConfig = Bitmap.Config.RGB_565;
-        opts.inDensity = dm.densityDpi;
-        opts.inPurgeable = true;
-        opts.inInputShareable = true;
-        
-        setRegionMap(regionMapId, regionIds, regionDrawableIds, opts);
+        setRegionMap(regionMapId, regionIds, regionDrawableIds, getDefaultOptions());
     }
     
     public void setRegionMap(int regionMapId, int[] regionIds, int[] regionDrawableIds, Options opts)
     {
-        Resources res = getResources();
+        // 按间隔取样缩小，不混合颜色
+        Options mapOpts = DrawableUtil.copyOptions(opts);
+        mapOpts.inSampleSize = Math.max(1, opts != null ? opts.inSampleSize : 1) * mRegionMapSampleSize;
+        BitmapPool pool = BitmapPool.getDefault();
+        Bitmap map = pool.decodeResource(getResources(), regionMapId, mapOpts);
+        RegionSource source = map != null ? new RegionIndex(map) : null;
+        pool.put(map);
+        
+        setRegionSource(source, regionIds, regionDrawableIds, opts);
+    }
+    
+    /**
+     * 使用自定义的区域来源，如{@link PolygonRegionSource}，代替位图区域图
+     * @param regionIds 有按下图片的区域id
+     * @param regionDrawableIds 与regionIds对应的按下图片
+     */
+    public void setRegionSource(RegionSource source, int[] regionIds, int[] regionDrawableIds)
+    {
+        setRegionSource(source, regionIds, regionDrawableIds, getDefaultOptions());
+    }
+    
+    /**
+     * @param opts 解码按下图片的参数
+     * @see #setRegionSource(RegionSource, int[], int[])
+     */
+    public void setRegionSource(RegionSource source, int[] regionIds, int[] regionDrawableIds, Options opts)
+    {
+        releaseRegionDrawables();
         mRegionDrawableIds = regionDrawableIds;
         mRegionIds = regionIds;
         mOptions = opts;
+        mRegionSource = source;
+        updateRegionScale();
         
-        mRegionMapBitmap = BitmapFactory.decodeResource(res, regionMapId, opts);
-        
+        mRegionIdMap = null;
+        mRegionDrawables = null;
+        mCurrentRegion = -1;
         if (regionIds == null || regionIds.length == 0 || regionDrawableIds == null || regionDrawableIds.length == 0)
         {
             requestLayout(); // refresh for mRegion but mRegionMap
@@ -154,22 +220,49 @@ public class RegionButton extends View
             throw new IllegalArgumentException("colors are not mapping with drawables");
         }
         
-        mRegionDrawable = new LevelListDrawable();
-        mRefRegionDrawableBitmaps = new WeakReference[regionIds.length];
-        int stateId = NO_ID;
-        for (int i = 0; i != regionIds.length; i++)
+        mRegionIdMap = new RegionIdMap(regionIds);
+        mRegionDrawables = new LazyResourceDrawable[regionIds.length];
+    }
+    
+    /**
+     * @return 区域按下时的图片，第一次时创建
+     */
+    private LazyResourceDrawable getRegionDrawable(int index)
+    {
+        LazyResourceDrawable d = mRegionDrawables[index];
+        if (d == null && mRegionDrawableIds[index] != NO_ID)
+        {
+            d = new LazyResourceDrawable(mContext, mRegionDrawableIds[index], mOptions);
+            d.setVisible(false, false);
+            mRegionDrawables[index] = d;
+        }
+        return d;
+    }
+    
+    /**
+     * 释放所有按下图片的Bitmap引用，再次按下时重新取
+     */
+    private void releaseRegionDrawables()
+    {
+        if (mRegionDrawables == null)
         {
-            stateId = regionDrawableIds[i];
-            Bitmap bmpState = BitmapFactory.decodeResource(res, stateId, opts);
-            if (bmpState == null)
-                continue;
-            
-            mRefRegionDrawableBitmaps[i] = new WeakReference<Bitmap>(bmpState);
-            BitmapDrawable drawable = new BitmapDrawable(res, getWeakBitmap(mRefRegionDrawableBitmaps[i], stateId));//.get());
-            mRegionDrawable.addLevel(regionIds[i], regionIds[i], drawable);
+            return;
         }
         
-        mRegionDrawable.setLevel(NO_REGION_ID);
+        for (LazyResourceDrawable d : mRegionDrawables)
+        {
+            if (d != null)
+            {
+                d.release();
+            }
+        }
+    }
+    
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        super.onDetachedFromWindow();
+        releaseRegionDrawables();
     }
     
     @Override
@@ -234,29 +327,22 @@ public class RegionButton extends View
         super.onLayout(changed, left, top, right, bottom);
         
         getDrawingRect(mDrawingRect);
-        Bitmap bmp = mRegionMapBitmap;
-        if (bmp != null)
-        {
-            if (bmp != null && (getWidth() != bmp.getWidth() || getHeight() != bmp.getHeight()))
-            {
-                Bitmap scaledBmp = Bitmap.createScaledBitmap(bmp, mDrawingRect.width(), mDrawingRect.height(), false);
-                bmp.recycle();
-                mRegionMapBitmap = scaledBmp;
-            }
-        }
+        updateRegionScale();
     }
     
-    private Bitmap getWeakBitmap(WeakReference<Bitmap> ref, int resId)
+    /**
+     * 区域来源铺满视图，按视图尺寸归一化坐标
+     */
+    private void updateRegionScale()
     {
-        Bitmap bmp = ref.get();
-        if (bmp == null)
+        if (getWidth() <= 0 || getHeight() <= 0)
         {
-            
-            Bitmap b = BitmapFactory.decodeResource(getResources(), resId, mOptions);
-            ref = new WeakReference<Bitmap>(b);
-            bmp = ref.get();
+            mRegionScaleX = 1;
+            mRegionScaleY = 1;
+            return;
         }
-        return bmp;
+        mRegionScaleX = 1f / getWidth();
+        mRegionScaleY = 1f / getHeight();
     }
     
     private boolean isRegionPressed()
@@ -271,12 +357,7 @@ public class RegionButton extends View
     
     private boolean hasRegion(int regionColor)
     {
-        for (int i = 0; i != mRegionIds.length; i++)
-        {
-            if (regionColor == mRegionIds[i])
-                return true;
-        }
-        return false;
+        return mRegionIdMap != null && mRegionIdMap.indexOf(regionColor) >= 0;
     }
     
     private void checkForRegionLongClick(long delayMillis)
@@ -307,19 +388,19 @@ public class RegionButton extends View
         }
     };
     
-    private int getColorFromBitmap(Bitmap bmp, int x, int y)
+    /**
+     * @param x 视图中的坐标
+     */
+    private int getRegionId(RegionSource source, float x, float y)
     {
-        if (x < 0 || x >= bmp.getWidth() || y < 0 || y >= bmp.getHeight())
-            return NO_REGION_ID;
-        
-        return bmp.getPixel(x, y);
+        return source.getRegionId(x * mRegionScaleX, y * mRegionScaleY);
     }
     
     @Override
     public boolean onTouchEvent(MotionEvent event)
     {
         
-        if (mRegionMapBitmap == null || mRegionIds == null || mRegionDrawable == null)
+        if (mRegionSource == null || mRegionIds == null || mRegionDrawables == null)
         {
             return super.onTouchEvent(event);
         }
@@ -328,10 +409,10 @@ public class RegionButton extends View
         {
             case MotionEvent.ACTION_DOWN:
             {
-                final int x = (int)event.getX();
-                final int y = (int)event.getY();
+                final float x = event.getX();
+                final float y = event.getY();
                 
-                int id = getColorFromBitmap(mRegionMapBitmap, x, y);
+                int id = getRegionId(mRegionSource, x, y);
                 if (id == NO_REGION_ID)
                 {
                     break;
@@ -395,10 +476,10 @@ public class RegionButton extends View
                 if (mPressedRegionId == NO_REGION_ID)
                     break;
                 
-                final int x = (int)event.getX();
-                final int y = (int)event.getY();
+                final float x = event.getX();
+                final float y = event.getY();
                 
-                int id = getColorFromBitmap(mRegionMapBitmap, x, y);
+                int id = getRegionId(mRegionSource, x, y);
                 if (id != mPressedRegionId)
                 {
                     id = mPressedRegionId;
@@ -424,10 +505,10 @@ public class RegionButton extends View
                 if (mPressedRegionId == NO_REGION_ID)
                     break;
                 
-                final int x = (int)event.getX();
-                final int y = (int)event.getY();
+                final float x = event.getX();
+                final float y = event.getY();
                 
-                int id = getColorFromBitmap(mRegionMapBitmap, x, y);
+                int id = getRegionId(mRegionSource, x, y);
                 if (id != NO_REGION_ID)
                 {
                     if (perfermRegionTouch(id, event))
@@ -473,8 +554,19 @@ public class RegionButton extends View
     {
         super.drawableStateChanged();
         
-        if (mRegionDrawable != null)
-            mRegionDrawable.setLevel(mPressedRegionId);
+        if (mRegionIdMap != null)
+        {
+            int region = mRegionIdMap.indexOf(mPressedRegionId);
+            if (region != mCurrentRegion)
+            {
+                // 只有正在显示的图片是可见的，其它的可以被释放
+                if (mCurrentRegion >= 0 && mRegionDrawables[mCurrentRegion] != null)
+                    mRegionDrawables[mCurrentRegion].setVisible(false, false);
+                if (region >= 0 && getRegionDrawable(region) != null)
+                    mRegionDrawables[region].setVisible(true, false);
+                mCurrentRegion = region;
+            }
+        }
         
         long duration = System.currentTimeMillis() - mPressedTime;
         if (isPressed()){
@@ -491,19 +583,11 @@ public class RegionButton extends View
         
         super.onDraw(canvas);
         
-        if (mRegionDrawable != null)
+        if (mRegionDrawables != null && mCurrentRegion >= 0)
         {
-            Drawable current = mRegionDrawable.getCurrent();
+            Drawable current = mRegionDrawables[mCurrentRegion];
             if (current != null)
             {
-                if (current instanceof BitmapDrawable)
-                {
-                    Bitmap bmp = ((BitmapDrawable)current).getBitmap();
-                    if (bmp == null)
-                    {
-                        Log.e(TAG, "bitmap has been released!");
-                    }
-                }
                 current.setBounds(mDrawingRect);
                 current.draw(canvas);
             }
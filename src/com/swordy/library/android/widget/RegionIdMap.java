@@ -0,0 +1,78 @@
+package com.swordy.library.android.widget;
+
+/**
+ * 区域id到它在regionIds中序号的表，开放寻址的int散列，查找为O(1)，不装箱
+ * <p>
+ * 设置区域图时建立一次，之后只读
+ */
+final class RegionIdMap
+{
+    private static final int EMPTY = -1;
+    
+    private final int[] mKeys;
+    
+    /**
+     * 与mKeys对应的序号，EMPTY表示空位
+     */
+    private final int[] mIndices;
+    
+    private final int mMask;
+    
+    /**
+     * @param ids 区域id，重复时取第一个
+     */
+    RegionIdMap(int[] ids)
+    {
+        // 容量取2的幂，装载率不超过1/2
+        int capacity = 4;
+        while (capacity < ids.length * 2)
+        {
+            capacity <<= 1;
+        }
+        mKeys = new int[capacity];
+        mIndices = new int[capacity];
+        mMask = capacity - 1;
+        for (int i = 0; i != capacity; i++)
+        {
+            mIndices[i] = EMPTY;
+        }
+        
+        for (int i = 0; i != ids.length; i++)
+        {
+            int slot = slotOf(ids[i]);
+            if (mIndices[slot] == EMPTY)
+            {
+                mKeys[slot] = ids[i];
+                mIndices[slot] = i;
+            }
+        }
+    }
+    
+    private static int hash(int id)
+    {
+        // 区域id是颜色，低位常常相同，先打散
+        int h = id * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * @return id所在的位置，没有时为应该放入的空位
+     */
+    private int slotOf(int id)
+    {
+        int slot = hash(id) & mMask;
+        while (mIndices[slot] != EMPTY && mKeys[slot] != id)
+        {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+    
+    /**
+     * @return id在regionIds中的序号，没有时为-1
+     */
+    int indexOf(int id)
+    {
+        return mIndices[slotOf(id)];
+    }
+}
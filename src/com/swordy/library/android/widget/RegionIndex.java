@@ -0,0 +1,150 @@
+package com.swordy.library.android.widget;
+
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * RegionButton区域图的紧凑索引：每个像素一个字节的颜色序号，加上序号到颜色的表。
+ * 查找只是一次数组访问，内存不到RGB_565 Bitmap的一半
+ * <p>
+ * 颜色超过256种时(如边缘抗锯齿)改为每个像素两个字节，仍不多于RGB_565。
+ * 序号0固定为没有区域的颜色
+ */
+final class RegionIndex implements RegionSource
+{
+    private static final int MAX_BYTE_COLORS = 0x100;
+    
+    private static final int MAX_CHAR_COLORS = 0x10000;
+    
+    private final int mWidth;
+    
+    private final int mHeight;
+    
+    /**
+     * 序号到颜色
+     */
+    private int[] mColors;
+    
+    private int mColorCount;
+    
+    /**
+     * 每个像素的序号，mBytes和mChars只有一个不为null
+     */
+    private byte[] mBytes;
+    
+    private char[] mChars;
+    
+    /**
+     * 转换区域图，之后不再需要它
+     */
+    RegionIndex(Bitmap map)
+    {
+        mWidth = map.getWidth();
+        mHeight = map.getHeight();
+        mBytes = new byte[mWidth * mHeight];
+        mColors = new int[16];
+        HashMap<Integer, Integer> indices = new HashMap<Integer, Integer>();
+        indexOf(indices, NO_REGION_ID);
+        
+        // 逐行读取，不为整张图分配int[]
+        int[] row = new int[mWidth];
+        int lastColor = NO_REGION_ID;
+        int lastIndex = 0;
+        for (int y = 0; y != mHeight; y++)
+        {
+            map.getPixels(row, 0, mWidth, 0, y, mWidth, 1);
+            int offset = y * mWidth;
+            for (int x = 0; x != mWidth; x++)
+            {
+                // 同色的像素大多连在一起
+                if (row[x] != lastColor)
+                {
+                    lastColor = row[x];
+                    lastIndex = indexOf(indices, lastColor);
+                }
+                set(offset + x, lastIndex);
+            }
+        }
+    }
+    
+    /**
+     * @return 颜色的序号，第一次出现时加入颜色表
+     */
+    private int indexOf(HashMap<Integer, Integer> indices, int color)
+    {
+        Integer index = indices.get(color);
+        if (index != null)
+        {
+            return index;
+        }
+        
+        if (mColorCount == MAX_CHAR_COLORS)
+        {
+            // 不会出现在RGB_565中，当作没有区域
+            return 0;
+        }
+        if (mColorCount == MAX_BYTE_COLORS)
+        {
+            widen();
+        }
+        if (mColorCount == mColors.length)
+        {
+            int[] colors = new int[mColors.length * 2];
+            System.arraycopy(mColors, 0, colors, 0, mColorCount);
+            mColors = colors;
+        }
+        mColors[mColorCount] = color;
+        indices.put(color, mColorCount);
+        return mColorCount++;
+    }
+    
+    /**
+     * 改为每个像素两个字节
+     */
+    private void widen()
+    {
+        mChars = new char[mBytes.length];
+        for (int i = 0; i != mBytes.length; i++)
+        {
+            mChars[i] = (char)(mBytes[i] & 0xff);
+        }
+        mBytes = null;
+    }
+    
+    private void set(int p, int index)
+    {
+        if (mBytes != null)
+        {
+            mBytes[p] = (byte)index;
+        }
+        else
+        {
+            mChars[p] = (char)index;
+        }
+    }
+    
+    /**
+     * @return 像素的颜色，超出范围时为NO_REGION_ID
+     */
+    private int getColor(int x, int y)
+    {
+        if (x < 0 || x >= mWidth || y < 0 || y >= mHeight)
+        {
+            return NO_REGION_ID;
+        }
+        
+        int p = y * mWidth + x;
+        return mColors[mBytes != null ? mBytes[p] & 0xff : mChars[p]];
+    }
+    
+    @Override
+    public int getRegionId(float x, float y)
+    {
+        if (x < 0 || y < 0)
+        {
+            return NO_REGION_ID;
+        }
+        return getColor((int)(x * mWidth), (int)(y * mHeight));
+    }
+}
@@ -0,0 +1,25 @@
+package com.swordy.library.android.widget;
+
+/**
+ * RegionButton的区域来源，把点击位置换成区域id
+ * <p>
+ * 坐标按视图尺寸归一化，区域来源铺满视图，自己决定内部的分辨率。
+ * 内置位图区域图({@link RegionButton#setRegionMap(int, int[], int[])})
+ * 和多边形区域({@link PolygonRegionSource})
+ * @see RegionButton#setRegionSource(RegionSource, int[], int[])
+ */
+public interface RegionSource
+{
+    /**
+     * 没有区域时返回的id
+     */
+    int NO_REGION_ID = 0xffffffff;
+    
+    /**
+     * 在主线程调用
+     * @param x 点击位置的横坐标除以视图宽度，0到1
+     * @param y 点击位置的纵坐标除以视图高度，0到1
+     * @return 所在区域的id，没有区域时为{@link #NO_REGION_ID}
+     */
+    int getRegionId(float x, float y);
+}